@@ -20,30 +20,35 @@ stmt
     | returnStmt
     | function
     | print
+    | printflush
     | draw
     | drawflush
+    | stable
+    | channel
+    | task
     | asm
     ;
 
 expr
-    : ID OPAREN (ID (COMMA ID)*)? CPAREN # funcCallExpr
-    | OPAREN expr CPAREN                 # parenExpr
-    | op=(MINUS | BNOT) expr             # unaryExpr // * no logical not?
-    | <assoc=right> expr op=EXP expr     # binExpr
-    | expr op=(MUL | DIV | MOD) expr     # binExpr
-    | expr op=(PLUS | MINUS) expr        # binExpr
-    | expr op=(LSHIFT | RSHIFT) expr     # binExpr
-    | expr op=(LT | GT | LTE | GTE) expr # binExpr
-    | expr op=(EQ | NEQ) expr            # binExpr
-    | expr op=BAND expr                  # binExpr
-    | expr op=BXOR expr                  # binExpr
-    | expr op=BOR expr                   # binExpr
-    | expr op=LAND expr                  # binExpr
-//  | expr op=LOR expr                   # binExpr // * doesn't exist?
-    | ID EQAS expr                       # assignExpr
-    | ID op=(PEQAS | MEQAS) expr         # selfAssignExpr
-    | atom                               # litExpr
-    | sensor                             # sensorExpr
+    : ID OPAREN (expr (COMMA expr)*)? CPAREN # funcCallExpr
+    | RAND OPAREN expr CPAREN                # randExpr
+    | OPAREN expr CPAREN                     # parenExpr
+    | op=(MINUS | BNOT) expr                 # unaryExpr // * no logical not?
+    | <assoc=right> expr op=EXP expr         # binExpr
+    | expr op=(MUL | DIV | MOD) expr         # binExpr
+    | expr op=(PLUS | MINUS) expr            # binExpr
+    | expr op=(LSHIFT | RSHIFT) expr         # binExpr
+    | expr op=(LT | GT | LTE | GTE) expr     # binExpr
+    | expr op=(EQ | NEQ) expr                # binExpr
+    | expr op=BAND expr                      # binExpr
+    | expr op=BXOR expr                      # binExpr
+    | expr op=BOR expr                       # binExpr
+    | expr op=LAND expr                      # binExpr
+    | expr op=LOR expr                       # binExpr
+    | ID EQAS expr                           # assignExpr
+    | ID op=(PEQAS | MEQAS) expr             # selfAssignExpr
+    | atom                                   # litExpr
+    | sensor                                 # sensorExpr
     ;
 
 ifStmt
@@ -72,19 +77,39 @@ returnStmt
     ;
 
 function
-    : FUNC ID OPAREN (ID (COMMA ID)*)? CPAREN block
+    : lut? FUNC ID OPAREN (ID (COMMA ID)*)? CPAREN block
+    ;
+
+lut
+    : LUT OPAREN ID COMMA integer COMMA integer CPAREN
     ;
 
 print
     : PRINT expr (COMMA expr)* SCOL
     ;
 
+printflush
+    : PRINTFLUSH OPAREN ID? CPAREN SCOL
+    ;
+
 draw
-    : DRAW OPAREN atom COMMA atom COMMA atom COMMA atom COMMA atom COMMA atom COMMA atom CPAREN SCOL
+    : DRAW OPAREN atom COMMA expr COMMA expr COMMA expr COMMA expr COMMA expr COMMA expr CPAREN SCOL
     ;
 
 drawflush
-    : DRAWFLUSH OPAREN CPAREN SCOL
+    : DRAWFLUSH OPAREN ID? CPAREN SCOL
+    ;
+
+stable
+    : STABLE sensor SCOL
+    ;
+
+channel
+    : CHANNEL ID OPAREN ID COMMA NUMBER CPAREN SCOL
+    ;
+
+task
+    : TASK ID (OPAREN NUMBER CPAREN)? block
     ;
 
 asm
@@ -95,6 +120,10 @@ sensor
     : HASH ID DOT ID
     ;
 
+integer
+    : MINUS? NUMBER
+    ;
+
 atom
     : ID
     | NUMBER
@@ -113,10 +142,15 @@ RETURN : 'return' ;
 FUNC : 'function' ;
 
 PRINT : 'print' ;
+PRINTFLUSH : 'printflush' ;
 DRAW : 'draw' ;
 DRAWFLUSH : 'drawflush' ;
 RAND : 'rand' ;
+STABLE : 'stable' ;
+CHANNEL : 'channel' ;
+TASK : 'task' ;
 ASM : 'asm' ;
+LUT : '@lut' ;
 
 // atoms
 
@@ -0,0 +1,55 @@
+import java.util.Objects;
+
+// a single producer, single consumer ring buffer in a memory bank: the consumer owns the head
+// cell and the producer the tail cell, so neither ever writes what the other writes
+public class Channel {
+    private final String bank;
+    private final int base;
+    private final int slots;
+
+    // one slot always stays empty so a full buffer can be told apart from an empty one
+    public Channel(String bank, int base, int capacity) {
+        this.bank = bank;
+        this.base = base;
+        this.slots = capacity + 1;
+    }
+
+    // cells the channel takes in its bank, head and tail included
+    public static int cells(int capacity) {
+        return capacity + 3;
+    }
+
+    public String getBank() {
+        return bank;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public int headCell() {
+        return base;
+    }
+
+    public int tailCell() {
+        return base + 1;
+    }
+
+    public int dataCell() {
+        return base + 2;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Channel)) {
+            return false;
+        }
+        Channel other = (Channel) o;
+        return bank.equals(other.bank) && base == other.base && slots == other.slots;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(bank, base, slots);
+    }
+}
@@ -0,0 +1,200 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompileStats {
+
+    @Name("minasm.CompilerPhase")
+    @Label("Compiler Phase")
+    @Category("MinAsm")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocatedBytes;
+
+        @Label("Instructions Before")
+        int instructionsBefore;
+
+        @Label("Instructions After")
+        int instructionsAfter;
+    }
+
+    @Name("minasm.Compile")
+    @Label("Compile")
+    @Category("MinAsm")
+    static class CompileEvent extends Event {
+        @Label("Input")
+        String input;
+
+        @Label("Wall Time")
+        @Timespan
+        long wallNanos;
+
+        @Label("Parse Tree Size")
+        int parseTreeSize;
+
+        @Label("Pushes")
+        int pushes;
+
+        @Label("Pops")
+        int pops;
+
+        @Label("Instructions")
+        int instructions;
+    }
+
+    public class Phase {
+        private final String name;
+        private final int instructionsBefore;
+        private final long startNanos;
+        private final long startAllocated;
+        private final PhaseEvent event = new PhaseEvent();
+        private int instructionsAfter;
+        private long wallNanos;
+        private long allocatedBytes;
+
+        private Phase(String name, int instructionsBefore) {
+            this.name = name;
+            this.instructionsBefore = instructionsBefore;
+            event.begin();
+            startAllocated = allocatedBytes();
+            startNanos = System.nanoTime();
+        }
+
+        public void finish(int instructionsAfter) {
+            wallNanos = System.nanoTime() - startNanos;
+            allocatedBytes = allocatedBytes() - startAllocated;
+            this.instructionsAfter = instructionsAfter;
+
+            event.end();
+            event.phase = name;
+            event.allocatedBytes = allocatedBytes;
+            event.instructionsBefore = instructionsBefore;
+            event.instructionsAfter = instructionsAfter;
+            event.commit();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public int getInstructionsBefore() {
+            return instructionsBefore;
+        }
+
+        public int getInstructionsAfter() {
+            return instructionsAfter;
+        }
+
+        public int getInstructionsRemoved() {
+            return instructionsBefore - instructionsAfter;
+        }
+    }
+
+    private final String input;
+    private final List<Phase> phases = new ArrayList<>();
+    private int parseTreeSize = 0;
+    private int pushes = 0;
+    private int pops = 0;
+
+    public CompileStats(String input) {
+        this.input = input;
+    }
+
+    private static long allocatedBytes() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public Phase start(String name, int instructionsBefore) {
+        Phase phase = new Phase(name, instructionsBefore);
+        phases.add(phase);
+        return phase;
+    }
+
+    public List<Phase> getPhases() {
+        return phases;
+    }
+
+    public void setParseTreeSize(int parseTreeSize) {
+        this.parseTreeSize = parseTreeSize;
+    }
+
+    public void setSpills(int pushes, int pops) {
+        this.pushes = pushes;
+        this.pops = pops;
+    }
+
+    public long getWallNanos() {
+        long total = 0;
+        for (Phase phase : phases) {
+            total += phase.wallNanos;
+        }
+        return total;
+    }
+
+    private int finalInstructions() {
+        return phases.isEmpty() ? 0 : phases.get(phases.size() - 1).instructionsAfter;
+    }
+
+    // records the whole compile as one event, alongside the per phase events
+    public void commit() {
+        CompileEvent event = new CompileEvent();
+        event.input = input;
+        event.wallNanos = getWallNanos();
+        event.parseTreeSize = parseTreeSize;
+        event.pushes = pushes;
+        event.pops = pops;
+        event.instructions = finalInstructions();
+        event.commit();
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"input\": ").append(quote(input)).append(",\n");
+        json.append("  \"wallNanos\": ").append(getWallNanos()).append(",\n");
+        json.append("  \"parseTreeSize\": ").append(parseTreeSize).append(",\n");
+        json.append("  \"pushes\": ").append(pushes).append(",\n");
+        json.append("  \"pops\": ").append(pops).append(",\n");
+        json.append("  \"instructions\": ").append(finalInstructions()).append(",\n");
+        json.append("  \"phases\": [");
+
+        for (int i = 0; i < phases.size(); i++) {
+            Phase phase = phases.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"name\": ").append(quote(phase.name))
+                    .append(", \"wallNanos\": ").append(phase.wallNanos)
+                    .append(", \"allocatedBytes\": ").append(phase.allocatedBytes)
+                    .append(", \"instructionsBefore\": ").append(phase.instructionsBefore)
+                    .append(", \"instructionsAfter\": ").append(phase.instructionsAfter)
+                    .append(", \"instructionsRemoved\": ").append(phase.getInstructionsRemoved())
+                    .append("}");
+        }
+
+        json.append(phases.isEmpty() ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+}
@@ -1,20 +1,152 @@
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 public class CompileVisitor extends MinAsmBaseVisitor<List<String>> {
 
-    private final String MEMORY_BANK = "bank1";
-    private final String MESSAGE = "message1";
-    private final String DISPLAY = "display1";
+    // a wait shorter than a tick gives up the rest of it
+    private final String YIELD_SECONDS = "0.001";
+    // math builtins lowered to the op of the same name, with their argument counts
+    private final Map<String, Integer> MATH_INTRINSICS = Map.ofEntries(
+            Map.entry("abs", 1), Map.entry("floor", 1), Map.entry("ceil", 1), Map.entry("sqrt", 1),
+            Map.entry("sin", 1), Map.entry("cos", 1), Map.entry("min", 2), Map.entry("max", 2),
+            Map.entry("angle", 2), Map.entry("len", 2), Map.entry("noise", 2));
     private int uidCounter = 0;
+    private int pushCount = 0;
+    private int popCount = 0;
 
     private final Map<String, List<String>> functions = new HashMap<>();
+    private final Map<String, List<String>> declaredFunctions = new LinkedHashMap<>();
+    private final Map<String, List<String>> functionParams = new HashMap<>();
+    private final Map<String, LookupTable> lookupTables = new HashMap<>();
+    private boolean inFunction = false;
+    // the parameters of the function being compiled and the variables they are kept in
+    private Map<String, String> parameterNames = new HashMap<>();
+    private String returnLabel = null;
+
+    private Profile profile = null;
+    private boolean blockLabels = false;
+    private boolean optimizeForSize = false;
+    private String idleWait = null;
+    private final Map<String, Integer> callCounts = new HashMap<>();
+    private final Map<String, List<String>> subroutines = new LinkedHashMap<>();
+    private final Set<String> stableSensors = new LinkedHashSet<>();
+    private final Set<String> asmLabels = new LinkedHashSet<>();
+    private final Map<String, Channel> channels = new HashMap<>();
+    private final Map<String, Integer> bankUsage = new HashMap<>();
+    private final Map<String, MinAsmParser.TaskContext> tasks = new LinkedHashMap<>();
+    private Integer currentTask = null;
+    private int jobs = 1;
+    private IncrementalCompiler incremental = null;
+    private TargetProfile target = TargetProfile.defaults();
+    private CostModel costModel = new CostModel(target);
+    // the chunk this visitor compiles when the program is split up, which its labels are numbered within
+    private Integer namespace = null;
+
+    public CompileVisitor() {
+    }
+
+    private CompileVisitor(CompileVisitor program, int namespace) {
+        this.namespace = namespace;
+        blockLabels = program.blockLabels;
+        optimizeForSize = program.optimizeForSize;
+        idleWait = program.idleWait;
+        target = program.target;
+        costModel = program.costModel;
+        callCounts.putAll(program.callCounts);
+        functions.putAll(program.functions);
+    }
+
+    // lays out branches and loops by the block counts of an earlier instrumented build
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    // marks then blocks and loop bodies with labels so instrumented builds can count them
+    public void setBlockLabels(boolean blockLabels) {
+        this.blockLabels = blockLabels;
+    }
+
+    // calls functions as shared subroutines instead of inlining them when that is smaller
+    public void setOptimizeForSize(boolean optimizeForSize) {
+        this.optimizeForSize = optimizeForSize;
+    }
+
+    // empty loops polling a sensor wait this many seconds between polls instead of spinning
+    public void setIdleWait(String idleWait) {
+        this.idleWait = idleWait;
+    }
+
+    // compiles function declarations and long runs of top level statements on this many threads,
+    // with the same output as compiling them in order
+    public void setJobs(int jobs) {
+        this.jobs = jobs;
+    }
+
+    // the processor the program runs on and the blocks it is linked to, which decide where the stack,
+    // prints and draws go and how code is weighed
+    public void setTarget(TargetProfile target) {
+        this.target = target;
+        costModel = new CostModel(target);
+    }
+
+    // reuses the chunks an earlier compile of the same source left in incremental when nothing they were
+    // compiled against changed, and leaves the new ones there for the next compile
+    public void setIncremental(IncrementalCompiler incremental) {
+        this.incremental = incremental;
+    }
+
+    // makes the functions of a separately compiled object callable without recompiling them
+    public void link(ObjectFile object) {
+        for (Map.Entry<String, List<String>> symbol : object.getSymbols().entrySet()) {
+            if (functions.containsKey(symbol.getKey())) {
+                throw new RuntimeException("duplicate function: " + symbol.getKey());
+            }
+            functions.put(symbol.getKey(), symbol.getValue());
+        }
+    }
+
+    // the cells the declared channels and lookup tables take in each bank
+    public Map<String, Integer> getBankUsage() {
+        return bankUsage;
+    }
+
+    // functions the compiler called as shared subroutines instead of inlining them
+    public int getSubroutineCount() {
+        return subroutines.size();
+    }
 
-    private int uid() {
-        return uidCounter++;
+    // functions declared by the compiled source itself, in declaration order
+    public Map<String, List<String>> getDeclaredFunctions() {
+        return declaredFunctions;
+    }
+
+    // sensor reads declared stable, as "block @attr", which loop optimization may hoist
+    public Set<String> getStableSensors() {
+        return stableSensors;
+    }
+
+    private boolean emitBlockLabels() {
+        return blockLabels || profile != null;
+    }
+
+    private String uid() {
+        int uid = uidCounter++;
+        return namespace == null ? Integer.toString(uid) : ParallelCompiler.placeholder(namespace, uid);
     }
 
     private List<String> cat(String... strings) {
@@ -43,22 +175,214 @@ public class CompileVisitor extends MinAsmBaseVisitor<List<String>> {
                 "set edx 0");
     }
 
+    public int getPushCount() {
+        return pushCount;
+    }
+
+    public int getPopCount() {
+        return popCount;
+    }
+
     private List<String> pushInstructions(String reg) {
+        pushCount++;
         return cat(
-                String.format("write %s %s bp", reg, MEMORY_BANK),
+                String.format("write %s %s bp", reg, target.getBank()),
                 "op add bp bp 1");
     }
 
     private List<String> popInstructions(String reg) {
+        popCount++;
         return cat(
                 "op sub bp bp 1",
-                String.format("read %s %s bp", reg, MEMORY_BANK));
+                String.format("read %s %s bp", reg, target.getBank()));
     }
 
     private MinAsmParser.AtomContext getAtomExpr(MinAsmParser.ExprContext ctx) {
         return ctx.getChild(MinAsmParser.AtomContext.class, 0);
     }
 
+    // a function's parameters belong to it, so a call it makes can't overwrite them
+    private static String parameterName(String funcName, String param) {
+        return funcName + "_" + param;
+    }
+
+    // the variable an identifier names where it is used
+    private String variable(String id) {
+        return parameterNames.getOrDefault(id, id);
+    }
+
+    private boolean isConstant(MinAsmParser.AtomContext atom) {
+        return atom != null && atom.ID() == null;
+    }
+
+    private String constantText(MinAsmParser.AtomContext atom) {
+        if (atom.STRING() != null) {
+            String stringText = atom.STRING().getText();
+            return stringText.substring(1, stringText.length() - 1);
+        }
+        return new BigDecimal(atom.NUMBER().getText()).stripTrailingZeros().toPlainString();
+    }
+
+    private String formatNumber(double value) {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    // returns the value of an expression made only of number literals, or null if it has none
+    private Double foldConstant(MinAsmParser.ExprContext ctx) {
+        if (ctx instanceof MinAsmParser.ParenExprContext) {
+            return foldConstant(((MinAsmParser.ParenExprContext) ctx).expr());
+        }
+
+        if (ctx instanceof MinAsmParser.LitExprContext) {
+            MinAsmParser.AtomContext atom = ((MinAsmParser.LitExprContext) ctx).atom();
+            return atom.NUMBER() != null ? Double.parseDouble(atom.NUMBER().getText()) : null;
+        }
+
+        if (ctx instanceof MinAsmParser.UnaryExprContext) {
+            MinAsmParser.UnaryExprContext u = (MinAsmParser.UnaryExprContext) ctx;
+            Double value = foldConstant(u.expr());
+            if (value == null) {
+                return null;
+            }
+            return u.op.getType() == MinAsmParser.MINUS ? -value : (double) ~value.longValue();
+        }
+
+        if (ctx instanceof MinAsmParser.BinExprContext) {
+            MinAsmParser.BinExprContext b = (MinAsmParser.BinExprContext) ctx;
+            Double left = foldConstant(b.expr(0));
+            Double right = foldConstant(b.expr(1));
+            if (left == null || right == null) {
+                return null;
+            }
+
+            double value;
+            switch (b.op.getType()) {
+                case MinAsmParser.EXP:
+                    value = Math.pow(left, right);
+                    break;
+                case MinAsmParser.MUL:
+                    value = left * right;
+                    break;
+                case MinAsmParser.DIV:
+                    value = left / right;
+                    break;
+                case MinAsmParser.MOD:
+                    value = left % right;
+                    break;
+                case MinAsmParser.PLUS:
+                    value = left + right;
+                    break;
+                case MinAsmParser.MINUS:
+                    value = left - right;
+                    break;
+                case MinAsmParser.LSHIFT:
+                    value = left.longValue() << right.longValue();
+                    break;
+                case MinAsmParser.RSHIFT:
+                    value = left.longValue() >> right.longValue();
+                    break;
+                case MinAsmParser.BAND:
+                    value = left.longValue() & right.longValue();
+                    break;
+                case MinAsmParser.BXOR:
+                    value = left.longValue() ^ right.longValue();
+                    break;
+                case MinAsmParser.BOR:
+                    value = left.longValue() | right.longValue();
+                    break;
+                default:
+                    return null;
+            }
+            return Double.isFinite(value) ? value : null;
+        }
+
+        if (ctx instanceof MinAsmParser.FuncCallExprContext) {
+            MinAsmParser.FuncCallExprContext f = (MinAsmParser.FuncCallExprContext) ctx;
+            if (isMathIntrinsic(f.ID().getText())) {
+                return foldMathCall(f.ID().getText(), f.expr());
+            }
+
+            // only calls that change nothing but their result are values
+            Map<String, Double> result = evaluateCall(f.ID().getText(), f.expr());
+            return result != null && result.keySet().equals(Set.of("eax")) ? result.get("eax") : null;
+        }
+
+        return null;
+    }
+
+    private Double foldMathCall(String funcName, List<MinAsmParser.ExprContext> exprs) {
+        if (exprs.size() != MATH_INTRINSICS.get(funcName)) {
+            return null;
+        }
+
+        double[] args = new double[exprs.size()];
+        for (int i = 0; i < args.length; i++) {
+            Double arg = foldConstant(exprs.get(i));
+            if (arg == null) {
+                return null;
+            }
+            args[i] = arg;
+        }
+        Double value = foldMathIntrinsic(funcName, args);
+        return value != null && Double.isFinite(value) ? value : null;
+    }
+
+    // runs a user function on constant arguments, returning what it leaves in the variables other than
+    // its parameters and scratch registers, or null if it can't be run at compile time
+    private Map<String, Double> evaluateCall(String funcName, List<MinAsmParser.ExprContext> args) {
+        List<String> params = functionParams.get(funcName);
+        if (params == null || params.size() != args.size()) {
+            return null;
+        }
+
+        Map<String, Double> variables = new HashMap<>();
+        variables.put("bp", 0.0);
+        for (int i = 0; i < args.size(); i++) {
+            Double value = foldConstant(args.get(i));
+            if (value == null) {
+                return null;
+            }
+            variables.put(params.get(i), value);
+        }
+
+        Map<String, Double> result = ConstantEvaluator.evaluate(functions.get(funcName), variables, target.getBank());
+        if (result == null || result.get("bp") != 0) {
+            return null;
+        }
+        result.keySet().removeAll(params);
+        result.keySet().removeAll(List.of("bp", "ebx", "ecx", "edx"));
+        return result;
+    }
+
+    // a call with constant arguments becomes the values it leaves behind, with its result in endStore
+    private List<String> foldCall(String funcName, List<MinAsmParser.ExprContext> args, String endStore) {
+        Map<String, Double> result = evaluateCall(funcName, args);
+        if (result == null || (!result.containsKey("eax") && !endStore.equals("eax"))) {
+            return null;
+        }
+
+        List<String> instructions = cat();
+        for (Map.Entry<String, Double> variable : result.entrySet()) {
+            if (!variable.getKey().equals("eax")) {
+                instructions = cat(instructions, String.format("set %s %s", variable.getKey(), formatNumber(variable.getValue())));
+            }
+        }
+        if (result.containsKey("eax")) {
+            instructions = cat(instructions, String.format("set %s %s", endStore, formatNumber(result.get("eax"))));
+        }
+        return instructions;
+    }
+
+    private boolean isMathIntrinsic(String funcName) {
+        return MATH_INTRINSICS.containsKey(funcName) && !functions.containsKey(funcName);
+    }
+
+    // the processor computes angle and len in single precision and noise from its own generator,
+    // so the evaluator leaves them alone
+    private Double foldMathIntrinsic(String funcName, double[] args) {
+        return ConstantEvaluator.op(funcName, args[0], args.length > 1 ? args[1] : 0);
+    }
+
     private String convertOperation(int lexerOp) {
         switch (lexerOp) {
             case MinAsmParser.EXP:
@@ -102,40 +426,356 @@ public class CompileVisitor extends MinAsmBaseVisitor<List<String>> {
         }
     }
 
-    @Override
-    public List<String> visitProgram(MinAsmParser.ProgramContext ctx) {
-        List<String> output = new ArrayList<>(setupInstructions());
+    public List<String> prologue() {
+        return setupInstructions();
+    }
 
-        for (var ec : ctx.stmt()) {
-            output.addAll(visit(ec));
+    public List<String> epilogue() {
+        List<String> output = new ArrayList<>(compileTasks());
+        output.add("end");
+        for (Map.Entry<String, List<String>> subroutine : subroutines.entrySet()) {
+            output.add("label .funcLbl" + subroutine.getKey());
+            output.addAll(subroutine.getValue());
+            output.add("set @counter " + SizeOptimizer.RETURN_ADDRESS);
         }
+        return output;
+    }
 
-        output.add("end");
+    private String taskPc(String name) {
+        return "pc_" + name;
+    }
+
+    private List<String> taskYield(int task) {
+        List<String> names = new ArrayList<>(tasks.keySet());
+        return TaskScheduler.yieldInstructions(taskPc(names.get(task)), (task + 1) % names.size());
+    }
+
+    // tasks are compiled once the whole program is known, after the top level code that sets
+    // them up; each records where it starts, then the first stub starts the round robin
+    private List<String> compileTasks() {
+        List<String> output = new ArrayList<>();
+        if (tasks.isEmpty()) {
+            return output;
+        }
+
+        List<String> names = new ArrayList<>(tasks.keySet());
+        for (int i = 0; i < names.size(); i++) {
+            MinAsmParser.TaskContext ctx = tasks.get(names.get(i));
+            String uid = uid();
+            String initLabel = ".taskInitLbl" + uid;
+            String endLabel = ".taskEndLbl" + uid;
+            int slice = ctx.NUMBER() == null ? costModel.taskSlice() : Integer.parseInt(ctx.NUMBER().getText());
+
+            currentTask = i;
+            List<String> body = visit(ctx.block());
+            currentTask = null;
+
+            // a finished task keeps giving its turns away
+            body = cat(body, "label " + endLabel);
+            body = cat(body, taskYield(i));
+            body = cat(body, "jump " + endLabel + " always null null");
 
+            output.add(String.format("op add %s @counter 1", taskPc(names.get(i))));
+            output.add("jump " + initLabel + " always null null");
+            output.addAll(TaskScheduler.insertYields(body, slice, taskYield(i)));
+            output.add("label " + initLabel);
+        }
+
+        // falls into the first stub
+        for (int i = 0; i < names.size(); i++) {
+            output.add("label " + TaskScheduler.STUB_PREFIX + i);
+            output.add("set @counter " + taskPc(names.get(i)));
+        }
         return output;
     }
 
-    @Override
-    public List<String> visitBlock(MinAsmParser.BlockContext ctx) {
+    private void countCalls(ParseTree tree) {
+        if (tree instanceof MinAsmParser.FuncCallExprContext) {
+            callCounts.merge(((MinAsmParser.FuncCallExprContext) tree).ID().getText(), 1, Integer::sum);
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            countCalls(tree.getChild(i));
+        }
+    }
+
+    // a call costs two instructions and the shared body one more to return
+    private boolean isSubroutine(String funcName) {
+        List<String> body = functions.get(funcName);
+        int calls = callCounts.getOrDefault(funcName, 0);
+        int length = SizeOptimizer.size(body);
+        return optimizeForSize
+                && CostModel.subroutineSavings(calls, length) > 0
+                && body.stream().noneMatch(i -> i.contains(SizeOptimizer.RETURN_ADDRESS));
+    }
+
+    // compiles a chunk with the channels and lookup tables declared before it and the functions of the
+    // earlier chunks it calls, which it waits for
+    // never serialized
+    @SuppressWarnings("serial")
+    private class ChunkTask extends RecursiveTask<List<String>> {
+        private final int index;
+        private final List<MinAsmParser.StmtContext> stmts;
+        private final List<ChunkTask> dependencies;
+        private final Map<String, Channel> channels;
+        private final Map<String, Integer> bankUsage;
+        private CompileVisitor visitor;
+
+        private ChunkTask(int index, List<MinAsmParser.StmtContext> stmts, List<ChunkTask> dependencies) {
+            this.index = index;
+            this.stmts = stmts;
+            this.dependencies = dependencies;
+            this.channels = new HashMap<>(CompileVisitor.this.channels);
+            this.bankUsage = new HashMap<>(CompileVisitor.this.bankUsage);
+        }
+
+        // everything the chunk's code depends on: its source, what was declared before it, how often
+        // the functions it calls are called, and what the chunks declaring them declared
+        private List<Object> key() {
+            Map<String, Integer> calls = new HashMap<>();
+            for (String call : ParallelCompiler.calledNames(stmts)) {
+                calls.put(call, callCounts.get(call));
+            }
+            List<Object> key = new ArrayList<>(List.of(ParallelCompiler.sourceText(stmts), channels, bankUsage, calls));
+            for (ChunkTask dependency : dependencies) {
+                key.add(dependency.index);
+                key.add(dependency.visitor.declaredFunctions);
+                key.add(dependency.visitor.functionParams);
+                key.add(dependency.visitor.lookupTables);
+            }
+            return key;
+        }
+
+        @Override
+        protected List<String> compute() {
+            for (ChunkTask dependency : dependencies) {
+                dependency.join();
+            }
+            List<Object> key = incremental == null ? null : key();
+            if (key != null) {
+                visitor = incremental.visitor(index, key);
+                if (visitor != null) {
+                    return incremental.output(index);
+                }
+            }
+
+            visitor = new CompileVisitor(CompileVisitor.this, index);
+            visitor.channels.putAll(channels);
+            visitor.bankUsage.putAll(bankUsage);
+            for (ChunkTask dependency : dependencies) {
+                visitor.declareFunctions(dependency.visitor, null);
+            }
+            List<String> output = visitor.visitStatements(stmts);
+            if (key != null) {
+                incremental.store(index, key, visitor, output);
+            }
+            return output;
+        }
+    }
+
+    // takes on the functions another visitor declared, renumbering their labels if bases are given
+    private void declareFunctions(CompileVisitor other, int[] bases) {
+        for (Map.Entry<String, List<String>> function : other.declaredFunctions.entrySet()) {
+            String name = function.getKey();
+            List<String> body = bases == null ? function.getValue() : ParallelCompiler.renumber(function.getValue(), bases);
+            functions.put(name, body);
+            functionParams.put(name, other.functionParams.get(name));
+            if (other.lookupTables.containsKey(name)) {
+                lookupTables.put(name, other.lookupTables.get(name));
+            } else {
+                lookupTables.remove(name);
+            }
+            if (bases != null) {
+                declaredFunctions.put(name, body);
+            }
+        }
+    }
+
+    // declarations are made here in order so each chunk starts from what the ones before it declared; the
+    // chunks then compile in parallel and are joined in order, each label numbered as a serial compile would
+    private List<String> visitChunks(List<List<MinAsmParser.StmtContext>> chunks) {
+        List<ChunkTask> chunkTasks = new ArrayList<>();
+        Map<String, ChunkTask> declarations = new HashMap<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            // the latest declaration of a name is the one a call sees
+            Set<ChunkTask> dependencies = new TreeSet<>(Comparator.comparingInt(t -> t.index));
+            for (String call : ParallelCompiler.calledNames(chunks.get(i))) {
+                if (declarations.containsKey(call)) {
+                    dependencies.add(declarations.get(call));
+                }
+            }
+            ChunkTask chunkTask = new ChunkTask(i, chunks.get(i), new ArrayList<>(dependencies));
+            chunkTasks.add(chunkTask);
+            for (String name : ParallelCompiler.declaredNames(chunks.get(i))) {
+                declarations.put(name, chunkTask);
+            }
+
+            for (MinAsmParser.StmtContext stmt : chunks.get(i)) {
+                if (stmt.channel() != null || stmt.stable() != null || stmt.task() != null) {
+                    visit(stmt);
+                } else if (stmt.function() != null && stmt.function().lut() != null) {
+                    allocateLookupTable(stmt.function().ID(0).getText(), stmt.function().ID().size() - 1, stmt.function().lut());
+                }
+            }
+        }
+
+        if (incremental != null) {
+            incremental.retain(chunks.size());
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(jobs);
+        try {
+            pool.invoke(ForkJoinTask.adapt(() -> {
+                ForkJoinTask.invokeAll(chunkTasks);
+            }));
+        } catch (RuntimeException e) {
+            throw ParallelCompiler.unwrap(e);
+        } finally {
+            pool.shutdown();
+        }
+
+        int[] bases = new int[chunkTasks.size()];
+        for (int i = 0; i < chunkTasks.size(); i++) {
+            bases[i] = uidCounter;
+            uidCounter += chunkTasks.get(i).visitor.uidCounter;
+        }
+
         List<String> output = new ArrayList<>();
+        for (ChunkTask chunkTask : chunkTasks) {
+            CompileVisitor chunk = chunkTask.visitor;
+            output.addAll(ParallelCompiler.renumber(chunkTask.join(), bases));
+            pushCount += chunk.pushCount;
+            popCount += chunk.popCount;
+            asmLabels.addAll(chunk.asmLabels);
+            for (Map.Entry<String, List<String>> subroutine : chunk.subroutines.entrySet()) {
+                subroutines.put(subroutine.getKey(), ParallelCompiler.renumber(subroutine.getValue(), bases));
+            }
+            declareFunctions(chunk, bases);
+        }
+        return output;
+    }
+
+    // adjacent print statements share one flush, which an explicit printflush replaces
+    public List<String> visitStatements(List<MinAsmParser.StmtContext> stmts) {
+        List<String> output = new ArrayList<>();
+        List<MinAsmParser.ExprContext> printArgs = new ArrayList<>();
+
+        for (var ec : stmts) {
+            if (ec.print() != null) {
+                if (printArgs.isEmpty() && currentTask != null) {
+                    output.add(TaskScheduler.YIELD_POINT);
+                }
+                printArgs.addAll(ec.print().expr());
+                continue;
+            }
+
+            if (!printArgs.isEmpty()) {
+                output.addAll(printInstructions(printArgs));
+                if (ec.printflush() == null) {
+                    output.add("printflush " + target.getMessage());
+                }
+                printArgs.clear();
+            } else if (currentTask != null) {
+                output.add(TaskScheduler.YIELD_POINT);
+            }
 
-        for (var ec : ctx.stmt()) {
             output.addAll(visit(ec));
         }
 
+        if (!printArgs.isEmpty()) {
+            output.addAll(printInstructions(printArgs));
+            output.add("printflush " + target.getMessage());
+        }
+
+        return output;
+    }
+
+    // consecutive constant arguments are concatenated into a single literal
+    private List<String> printInstructions(List<MinAsmParser.ExprContext> args) {
+        List<String> out = new ArrayList<>();
+        List<MinAsmParser.AtomContext> constants = new ArrayList<>();
+
+        for (MinAsmParser.ExprContext ec : args) {
+            MinAsmParser.AtomContext atom = getAtomExpr(ec);
+            if (isConstant(atom)) {
+                constants.add(atom);
+                continue;
+            }
+
+            out.addAll(printConstants(constants));
+            constants.clear();
+
+            if (atom != null) {
+                out.add("print " + variable(atom.getText()));
+            } else {
+                out = cat(out, visit(ec));
+                out.add("print eax");
+            }
+        }
+        out.addAll(printConstants(constants));
+
+        return out;
+    }
+
+    private List<String> printConstants(List<MinAsmParser.AtomContext> constants) {
+        if (constants.isEmpty()) {
+            return cat();
+        } else if (constants.size() == 1) {
+            return cat("print " + constants.get(0).getText());
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (MinAsmParser.AtomContext atom : constants) {
+            text.append(constantText(atom));
+        }
+        return cat("print \"" + text + "\"");
+    }
+
+    @Override
+    public List<String> visitProgram(MinAsmParser.ProgramContext ctx) {
+        countCalls(ctx);
+        List<String> output = new ArrayList<>(prologue());
+
+        List<List<MinAsmParser.StmtContext>> chunks = ParallelCompiler.partition(ctx.stmt());
+        if ((jobs > 1 && chunks.size() > 1 || incremental != null) && profile == null && ParallelCompiler.canPartition(ctx)) {
+            output.addAll(visitChunks(chunks));
+        } else {
+            output.addAll(visitStatements(ctx.stmt()));
+        }
+
+        output.addAll(epilogue());
+
+        for (String label : LabelFixer.unresolvedLabels(output)) {
+            if (asmLabels.contains(label)) {
+                throw new RuntimeException(String.format("asm jump to unknown label '%s'", label));
+            }
+        }
+
         return output;
     }
 
+    @Override
+    public List<String> visitBlock(MinAsmParser.BlockContext ctx) {
+        return visitStatements(ctx.stmt());
+    }
+
     @Override
     public List<String> visitStmt(MinAsmParser.StmtContext ctx) {
         if (ctx.expr() != null) {
             return visit(ctx.expr());
         } else if (ctx.print() != null) {
             return visit(ctx.print());
+        } else if (ctx.printflush() != null) {
+            return visit(ctx.printflush());
         } else if (ctx.draw() != null) {
             return visit(ctx.draw());
         } else if (ctx.drawflush() != null) {
             return visit(ctx.drawflush());
+        } else if (ctx.stable() != null) {
+            return visit(ctx.stable());
+        } else if (ctx.channel() != null) {
+            return visit(ctx.channel());
+        } else if (ctx.task() != null) {
+            return visit(ctx.task());
         } else if (ctx.asm() != null) {
             return visit(ctx.asm());
         } else if (ctx.function() != null) {
@@ -146,6 +786,8 @@ public class CompileVisitor extends MinAsmBaseVisitor<List<String>> {
             return visit(ctx.labelStmt());
         } else if (ctx.gotoStmt() != null) {
             return visit(ctx.gotoStmt());
+        } else if (ctx.returnStmt() != null) {
+            return visit(ctx.returnStmt());
         } else if (ctx.whileLoop() != null) {
             return visit(ctx.whileLoop());
         } else {
@@ -153,14 +795,311 @@ public class CompileVisitor extends MinAsmBaseVisitor<List<String>> {
         }
     }
 
+    private List<String> builtinCall(String funcName, List<MinAsmParser.ExprContext> args) {
+        if (MATH_INTRINSICS.containsKey(funcName)) {
+            return mathInstructions(funcName, args, "eax");
+        }
+
+        switch (funcName) {
+            case "wait":
+                if (args.size() != 1) {
+                    throw new RuntimeException("wait takes one argument");
+                }
+                MinAsmParser.AtomContext seconds = getAtomExpr(args.get(0));
+                if (seconds != null) {
+                    return cat("wait " + variable(seconds.getText()));
+                }
+                return cat(visit(args.get(0)), "wait eax");
+            case "yield":
+                if (!args.isEmpty()) {
+                    throw new RuntimeException("yield takes no arguments");
+                }
+                if (currentTask != null) {
+                    return taskYield(currentTask);
+                }
+                return cat("wait " + YIELD_SECONDS);
+            case "send":
+                if (args.size() < 2) {
+                    throw new RuntimeException("send takes a channel and at least one value");
+                }
+                return sendInstructions(channel(args.get(0)), args.subList(1, args.size()));
+            case "recv":
+                MinAsmParser.AtomContext dest = args.size() == 2 ? getAtomExpr(args.get(1)) : null;
+                if (dest == null || dest.ID() == null) {
+                    throw new RuntimeException("recv takes a channel and a variable");
+                }
+                return recvInstructions(channel(args.get(0)), variable(dest.getText()));
+            default:
+                return null;
+        }
+    }
+
+    // a single op, or a set when every argument is constant
+    private List<String> mathInstructions(String funcName, List<MinAsmParser.ExprContext> args, String endStore) {
+        checkArgumentCount(funcName, MATH_INTRINSICS.get(funcName), args);
+
+        Double value = foldMathCall(funcName, args);
+        if (value != null) {
+            return cat(String.format("set %s %s", endStore, formatNumber(value)));
+        }
+
+        String[] operands = new String[2];
+        List<String> instructions = operandInstructions(args, operands);
+        return cat(instructions,
+                String.format("op %s %s %s %s", funcName, endStore, operands[0], operands[1]));
+    }
+
+    private void checkArgumentCount(String funcName, int count, List<MinAsmParser.ExprContext> args) {
+        if (args.size() != count) {
+            throw new RuntimeException(String.format("%s takes %d argument%s", funcName, count, count == 1 ? "" : "s"));
+        }
+    }
+
+    private boolean containsId(ParseTree tree, String id) {
+        if (tree instanceof TerminalNode) {
+            return ((TerminalNode) tree).getSymbol().getType() == MinAsmParser.ID && variable(tree.getText()).equals(id);
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            if (containsId(tree.getChild(i), id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // whether evaluating tree calls a function of the program, which can set any parameter on the way
+    private boolean containsCall(ParseTree tree) {
+        if (tree instanceof MinAsmParser.FuncCallExprContext) {
+            String funcName = ((MinAsmParser.FuncCallExprContext) tree).ID().getText();
+            if (functions.containsKey(funcName) && !lookupTables.containsKey(funcName)) {
+                return true;
+            }
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            if (containsCall(tree.getChild(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // parameters are plain variables set before the body; when an argument reads a parameter set before it,
+    // or calls a function that could set one, every argument is evaluated onto the stack first
+    private List<String> bindParameters(List<String> params, List<MinAsmParser.ExprContext> args) {
+        boolean overlapping = false;
+        for (int i = 0; i < params.size(); i++) {
+            for (int j = i + 1; j < args.size(); j++) {
+                overlapping |= containsId(args.get(j), params.get(i));
+            }
+        }
+        for (int j = 1; j < args.size(); j++) {
+            overlapping |= containsCall(args.get(j));
+        }
+
+        List<String> instructions = cat();
+        if (!overlapping) {
+            for (int i = 0; i < params.size(); i++) {
+                if (!variable(args.get(i).getText()).equals(params.get(i))) {
+                    instructions = cat(instructions, assignInstructions(params.get(i), args.get(i)));
+                }
+            }
+            return instructions;
+        }
+
+        for (int i = 0; i < args.size(); i++) {
+            instructions = cat(instructions, visit(args.get(i)));
+            if (i < args.size() - 1) {
+                instructions = cat(instructions, pushInstructions("eax"));
+            }
+        }
+        instructions = cat(instructions, String.format("set %s eax", params.get(params.size() - 1)));
+        for (int i = params.size() - 2; i >= 0; i--) {
+            instructions = cat(instructions, popInstructions(params.get(i)));
+        }
+        return instructions;
+    }
+
+    // one read of the cell the argument selects, with the argument offset to the table first unless it starts the bank;
+    // an argument outside the table or between its cells would read some other cell, so it runs the function instead
+    private List<String> lookupInstructions(String funcName, MinAsmParser.ExprContext arg, String endStore) {
+        LookupTable table = lookupTables.get(funcName);
+        String param = functionParams.get(funcName).get(0);
+        MinAsmParser.AtomContext atom = getAtomExpr(arg);
+        String index = atom != null ? variable(atom.getText()) : param;
+        List<String> instructions = atom != null ? cat() : assignInstructions(param, arg);
+
+        String slowLabel = ".lutLbl" + uid();
+        String endLabel = ".lutLbl" + uid();
+        instructions = cat(instructions,
+                String.format("jump %s lessThan %s %d", slowLabel, index, table.getLo()),
+                String.format("jump %s greaterThan %s %d", slowLabel, index, table.getHi()),
+                String.format("op floor eax %s", index),
+                String.format("jump %s notEqual eax %s", slowLabel, index));
+        if (table.offset() != 0) {
+            instructions = cat(instructions, String.format("op add eax eax %d", table.offset()));
+        }
+        instructions = cat(instructions,
+                String.format("read %s %s eax", endStore, table.getBank()),
+                String.format("jump %s always null null", endLabel),
+                "label " + slowLabel);
+
+        if (!index.equals(param)) {
+            instructions = cat(instructions, String.format("set %s %s", param, index));
+        }
+        instructions = cat(instructions, bodyInstructions(funcName));
+        if (!endStore.equals("eax")) {
+            instructions = cat(instructions, String.format("set %s eax", endStore));
+        }
+        return cat(instructions, "label " + endLabel);
+    }
+
+    private Channel channel(MinAsmParser.ExprContext ctx) {
+        Channel channel = channels.get(ctx.getText());
+        if (channel == null) {
+            throw new RuntimeException("unknown channel: " + ctx.getText());
+        }
+        return channel;
+    }
+
+    // stores every value or none, leaving 1 in eax if they were sent and 0 if the channel was too full;
+    // values are evaluated first, all but the last computed one waiting on the stack
+    private List<String> sendInstructions(Channel channel, List<MinAsmParser.ExprContext> values) {
+        String uid = uid();
+        String failLabel = ".sendFailLbl" + uid;
+        String sendLabel = ".sendLbl" + uid;
+        String bank = channel.getBank();
+        int slots = channel.getSlots();
+        int count = values.size();
+
+        int lastComputed = -1;
+        for (int i = 0; i < count; i++) {
+            if (getAtomExpr(values.get(i)) == null) {
+                lastComputed = i;
+            }
+        }
+
+        List<String> instructions = cat();
+        int pushed = 0;
+        for (int i = 0; i < count; i++) {
+            if (getAtomExpr(values.get(i)) == null) {
+                instructions = cat(instructions, visit(values.get(i)));
+                if (i != lastComputed) {
+                    instructions = cat(instructions, pushInstructions("eax"));
+                    pushed++;
+                }
+            }
+        }
+
+        instructions = cat(instructions,
+                String.format("read ecx %s %d", bank, channel.headCell()),
+                String.format("read edx %s %d", bank, channel.tailCell()),
+                "op sub ebx ecx edx",
+                String.format("op add ebx ebx %d", slots - 1),
+                String.format("op mod ebx ebx %d", slots),
+                String.format("jump %s lessThan ebx %d", failLabel, count));
+
+        for (int i = count - 1; i >= 0; i--) {
+            MinAsmParser.AtomContext atom = getAtomExpr(values.get(i));
+            String value;
+            if (atom != null) {
+                value = variable(atom.getText());
+            } else if (i == lastComputed) {
+                value = "eax";
+            } else {
+                instructions = cat(instructions, popInstructions("ecx"));
+                value = "ecx";
+            }
+
+            if (i == 0) {
+                instructions = cat(instructions, String.format("op add ebx edx %d", channel.dataCell()));
+            } else {
+                instructions = cat(instructions,
+                        String.format("op add ebx edx %d", i),
+                        String.format("op mod ebx ebx %d", slots),
+                        String.format("op add ebx ebx %d", channel.dataCell()));
+            }
+            instructions = cat(instructions, String.format("write %s %s ebx", value, bank));
+        }
+
+        instructions = cat(instructions,
+                String.format("op add edx edx %d", count),
+                String.format("op mod edx edx %d", slots),
+                String.format("write edx %s %d", bank, channel.tailCell()),
+                "set eax 1",
+                "jump " + sendLabel + " always null null",
+                "label " + failLabel);
+        if (pushed > 0) {
+            instructions = cat(instructions, String.format("op sub bp bp %d", pushed));
+        }
+        return cat(instructions,
+                "set eax 0",
+                "label " + sendLabel);
+    }
+
+    // takes the oldest value into dest, leaving 1 in eax, or leaves 0 if the channel was empty
+    private List<String> recvInstructions(Channel channel, String dest) {
+        String uid = uid();
+        String failLabel = ".recvFailLbl" + uid;
+        String recvLabel = ".recvLbl" + uid;
+        String bank = channel.getBank();
+
+        return cat(
+                String.format("read ecx %s %d", bank, channel.headCell()),
+                String.format("read edx %s %d", bank, channel.tailCell()),
+                String.format("jump %s equal ecx edx", failLabel),
+                String.format("op add ebx ecx %d", channel.dataCell()),
+                String.format("read %s %s ebx", dest, bank),
+                "op add ecx ecx 1",
+                String.format("op mod ecx ecx %d", channel.getSlots()),
+                String.format("write ecx %s %d", bank, channel.headCell()),
+                "set eax 1",
+                "jump " + recvLabel + " always null null",
+                "label " + failLabel,
+                "set eax 0",
+                "label " + recvLabel);
+    }
+
     @Override
     public List<String> visitFuncCallExpr(MinAsmParser.FuncCallExprContext ctx) {
-        String funcName = ctx.ID(0).getText();
+        String funcName = ctx.ID().getText();
         if (!functions.containsKey(funcName)) {
-            throw new RuntimeException("unknown function: " + funcName);
+            List<String> builtin = builtinCall(funcName, ctx.expr());
+            if (builtin == null) {
+                throw new RuntimeException("unknown function: " + funcName);
+            }
+            return builtin;
+        }
+
+        // linked functions don't say what parameters they take
+        List<String> params = functionParams.get(funcName);
+        List<String> instructions = cat();
+        if (params != null) {
+            checkArgumentCount(funcName, params.size(), ctx.expr());
+
+            List<String> folded = foldCall(funcName, ctx.expr(), "eax");
+            if (folded != null) {
+                return folded;
+            }
+            if (lookupTables.containsKey(funcName)) {
+                return lookupInstructions(funcName, ctx.expr(0), "eax");
+            }
+            instructions = bindParameters(params, ctx.expr());
+        }
+        return cat(instructions, bodyInstructions(funcName));
+    }
+
+    // runs the body of a function whose parameters are bound, leaving its result in eax
+    private List<String> bodyInstructions(String funcName) {
+        if (isSubroutine(funcName)) {
+            // a linked body was labeled by another compile, so its one copy gets labels of its own too
+            List<String> body = functionParams.get(funcName) != null ? functions.get(funcName)
+                    : LabelFixer.relocateLabels(functions.get(funcName), "." + funcName);
+            subroutines.put(funcName, body);
+            return cat("op add " + SizeOptimizer.RETURN_ADDRESS + " @counter 1", "jump .funcLbl" + funcName + " always null null");
         }
 
-        return functions.get(funcName);
+        // every inlined copy gets its own labels
+        return LabelFixer.relocateLabels(functions.get(funcName), "." + uid());
     }
 
     @Override
@@ -176,7 +1115,7 @@ public class CompileVisitor extends MinAsmBaseVisitor<List<String>> {
         String arg;
 
         if (e != null) {
-            arg = e.getText();
+            arg = variable(e.getText());
             instructions = cat();
         } else {
             arg = "eax";
@@ -195,39 +1134,138 @@ public class CompileVisitor extends MinAsmBaseVisitor<List<String>> {
         }
     }
 
+    private boolean isLogicalOperation(int lexerOp) {
+        return lexerOp == MinAsmParser.LAND || lexerOp == MinAsmParser.LOR;
+    }
+
+    // evaluates the right operand only if the left one doesn't decide the result, leaving 0 or 1 in endStore
+    private List<String> visitShortCircuitExpr(MinAsmParser.BinExprContext ctx, String endStore) {
+        String scLabel = ".scLbl" + uid();
+        String skipCondition = ctx.op.getType() == MinAsmParser.LAND ? "equal" : "notEqual";
+        List<String> instructions = visit(ctx.expr(0));
+        instructions = cat(instructions,
+                String.format("jump %s %s eax 0", scLabel, skipCondition));
+        instructions = cat(instructions, visit(ctx.expr(1)));
+        instructions = cat(instructions,
+                "label " + scLabel,
+                String.format("op notEqual %s eax 0", endStore));
+        return instructions;
+    }
+
+    // jumps to label when ctx evaluates to false, lowering && and || into jump chains
+    private List<String> branchIfFalse(MinAsmParser.ExprContext ctx, String label) {
+        if (ctx instanceof MinAsmParser.ParenExprContext) {
+            return branchIfFalse(((MinAsmParser.ParenExprContext) ctx).expr(), label);
+        }
+
+        MinAsmParser.AtomContext atom = getAtomExpr(ctx);
+        if (atom != null) {
+            return cat(String.format("jump %s equal %s 0", label, variable(atom.getText())));
+        }
+
+        if (ctx instanceof MinAsmParser.BinExprContext && isLogicalOperation(((MinAsmParser.BinExprContext) ctx).op.getType())) {
+            MinAsmParser.BinExprContext b = (MinAsmParser.BinExprContext) ctx;
+            // taken whether or not it's used so both branch polarities number later labels alike
+            String scLabel = ".scLbl" + uid();
+            if (b.op.getType() == MinAsmParser.LAND) {
+                return cat(branchIfFalse(b.expr(0), label), branchIfFalse(b.expr(1), label));
+            } else {
+                List<String> instructions = branchIfTrue(b.expr(0), scLabel);
+                instructions = cat(instructions, branchIfFalse(b.expr(1), label));
+                return cat(instructions, "label " + scLabel);
+            }
+        }
+
+        return cat(visit(ctx), String.format("jump %s equal eax 0", label));
+    }
+
+    // jumps to label when ctx evaluates to true, lowering && and || into jump chains
+    private List<String> branchIfTrue(MinAsmParser.ExprContext ctx, String label) {
+        if (ctx instanceof MinAsmParser.ParenExprContext) {
+            return branchIfTrue(((MinAsmParser.ParenExprContext) ctx).expr(), label);
+        }
+
+        MinAsmParser.AtomContext atom = getAtomExpr(ctx);
+        if (atom != null) {
+            return cat(String.format("jump %s notEqual %s 0", label, variable(atom.getText())));
+        }
+
+        if (ctx instanceof MinAsmParser.BinExprContext && isLogicalOperation(((MinAsmParser.BinExprContext) ctx).op.getType())) {
+            MinAsmParser.BinExprContext b = (MinAsmParser.BinExprContext) ctx;
+            String scLabel = ".scLbl" + uid();
+            if (b.op.getType() == MinAsmParser.LOR) {
+                return cat(branchIfTrue(b.expr(0), label), branchIfTrue(b.expr(1), label));
+            } else {
+                List<String> instructions = branchIfFalse(b.expr(0), scLabel);
+                instructions = cat(instructions, branchIfTrue(b.expr(1), label));
+                return cat(instructions, "label " + scLabel);
+            }
+        }
+
+        return cat(visit(ctx), String.format("jump %s notEqual eax 0", label));
+    }
+
     private List<String> visitBinExprAbst(MinAsmParser.BinExprContext ctx, String endStore) {
-        MinAsmParser.AtomContext leftAtom = getAtomExpr(ctx.expr(0));
         MinAsmParser.AtomContext rightAtom = getAtomExpr(ctx.expr(1));
 
-        String leftArg;
-        String rightArg;
-        List<String> instructions;
+        // && with an atom on the right has nothing to skip, so it stays a single land
+        if (isLogicalOperation(ctx.op.getType()) && (ctx.op.getType() == MinAsmParser.LOR || rightAtom == null)) {
+            return visitShortCircuitExpr(ctx, endStore);
+        }
+
+        String[] args = new String[2];
+        List<String> instructions = operandInstructions(ctx.expr(), args);
+
+        String op = convertOperation(ctx.op.getType());
+        return cat(instructions,
+                String.format("op %s %s %s %s", op, endStore, args[0], args[1]));
+    }
+
+    // evaluates one or two operands, leaving the names an op reads them by in args
+    private List<String> operandInstructions(List<MinAsmParser.ExprContext> operands, String[] args) {
+        MinAsmParser.AtomContext leftAtom = getAtomExpr(operands.get(0));
+
+        if (operands.size() == 1) {
+            args[0] = leftAtom != null ? variable(leftAtom.getText()) : "eax";
+            args[1] = "null";
+            return leftAtom != null ? cat() : visit(operands.get(0));
+        }
 
+        MinAsmParser.AtomContext rightAtom = getAtomExpr(operands.get(1));
         if (leftAtom != null && rightAtom != null) {
-            leftArg = leftAtom.getText();
-            rightArg = rightAtom.getText();
-            instructions = cat();
+            args[0] = variable(leftAtom.getText());
+            args[1] = variable(rightAtom.getText());
+            return cat();
         } else if (leftAtom != null) {
-            leftArg = leftAtom.getText();
-            rightArg = "eax";
-            instructions = visit(ctx.expr(1));
+            args[0] = variable(leftAtom.getText());
+            args[1] = "eax";
+            return visit(operands.get(1));
         } else if (rightAtom != null) {
-            leftArg = "eax";
-            rightArg = rightAtom.getText();
-            instructions = visit(ctx.expr(0));
+            args[0] = "eax";
+            args[1] = variable(rightAtom.getText());
+            return visit(operands.get(0));
         } else {
-            leftArg = "ebx";
-            rightArg = "eax";
-            List<String> left = visit(ctx.expr(0));
+            args[0] = "ebx";
+            args[1] = "eax";
+            List<String> left = visit(operands.get(0));
             left = cat(left, pushInstructions("eax"));
-            List<String> right = visit(ctx.expr(1));
+            List<String> right = visit(operands.get(1));
             right = cat(right, popInstructions("ebx"));
-            instructions = cat(left, right);
+            return cat(left, right);
         }
+    }
 
-        String op = convertOperation(ctx.op.getType());
+    // a random number from 0 up to the bound, never folded or hoisted
+    private List<String> randInstructions(MinAsmParser.RandExprContext ctx, String endStore) {
+        String[] args = new String[2];
+        List<String> instructions = operandInstructions(List.of(ctx.expr()), args);
         return cat(instructions,
-                String.format("op %s %s %s %s", op, endStore, leftArg, rightArg));
+                String.format("op rand %s %s null", endStore, args[0]));
+    }
+
+    @Override
+    public List<String> visitRandExpr(MinAsmParser.RandExprContext ctx) {
+        return randInstructions(ctx, "eax");
     }
 
     @Override
@@ -237,32 +1275,59 @@ public class CompileVisitor extends MinAsmBaseVisitor<List<String>> {
 
     @Override
     public List<String> visitAssignExpr(MinAsmParser.AssignExprContext ctx) {
-        MinAsmParser.AtomContext e = getAtomExpr(ctx.expr());
-        MinAsmParser.BinExprContext b = ctx.getChild(MinAsmParser.BinExprContext.class, 0);
+        return assignInstructions(variable(ctx.ID().getText()), ctx.expr());
+    }
 
-        String id = ctx.ID().getText();
+    private List<String> assignInstructions(String id, MinAsmParser.ExprContext expr) {
+        MinAsmParser.AtomContext e = getAtomExpr(expr);
 
         if (e != null) {
-            return cat(String.format("set %s %s", id, e.getText()));
+            return cat(String.format("set %s %s", id, variable(e.getText())));
+        }
+
+        if (expr instanceof MinAsmParser.SensorExprContext) {
+            MinAsmParser.SensorContext sensor = ((MinAsmParser.SensorExprContext) expr).sensor();
+            return cat(String.format("sensor %s %s @%s", id, variable(sensor.ID(0).getText()), sensor.ID(1).getText()));
+        }
+
+        if (expr instanceof MinAsmParser.BinExprContext) {
+            return visitBinExprAbst((MinAsmParser.BinExprContext) expr, id);
+        }
+
+        if (expr instanceof MinAsmParser.RandExprContext) {
+            return randInstructions((MinAsmParser.RandExprContext) expr, id);
         }
 
-        if (b != null) {
-            return visitBinExprAbst(b, id);
+        if (expr instanceof MinAsmParser.FuncCallExprContext) {
+            MinAsmParser.FuncCallExprContext f = (MinAsmParser.FuncCallExprContext) expr;
+            String funcName = f.ID().getText();
+            if (isMathIntrinsic(funcName)) {
+                return mathInstructions(funcName, f.expr(), id);
+            }
+
+            List<String> folded = foldCall(funcName, f.expr(), id);
+            if (folded != null) {
+                return folded;
+            }
+            if (lookupTables.containsKey(funcName)) {
+                checkArgumentCount(funcName, 1, f.expr());
+                return lookupInstructions(funcName, f.expr(0), id);
+            }
         }
 
-        List<String> instructions = visit(ctx.expr());
+        List<String> instructions = visit(expr);
         return cat(instructions, String.format("set %s eax", id));
     }
 
     @Override
     public List<String> visitSelfAssignExpr(MinAsmParser.SelfAssignExprContext ctx) {
         MinAsmParser.AtomContext e = getAtomExpr(ctx.expr());
-        String id = ctx.ID().getText();
+        String id = variable(ctx.ID().getText());
         String arg;
         List<String> instructions;
 
         if (e != null) {
-            arg = e.getText();
+            arg = variable(e.getText());
             instructions = cat();
         } else {
             arg = "eax";
@@ -283,23 +1348,26 @@ public class CompileVisitor extends MinAsmBaseVisitor<List<String>> {
 
     @Override
     public List<String> visitLitExpr(MinAsmParser.LitExprContext ctx) {
-        String value = ctx.getText();
+        String value = variable(ctx.getText());
         return cat("set eax " + value);
     }
 
     @Override
     public List<String> visitSensorExpr(MinAsmParser.SensorExprContext ctx) {
-        String blockName = ctx.sensor().ID(0).getText();
+        String blockName = variable(ctx.sensor().ID(0).getText());
         String attr = ctx.sensor().ID(1).getText();
         return cat(String.format("sensor eax %s @%s", blockName, attr));
     }
 
     @Override
     public List<String> visitNakedIf(MinAsmParser.NakedIfContext ctx) {
-        List<String> instructions = visit(ctx.expr());
-        String ifLabel = ".ifLbl" + uid();
-        instructions = cat(instructions,
-                "jump " + ifLabel + " equal eax 0");
+        String uid = uid();
+        String ifLabel = ".ifLbl" + uid;
+        List<String> instructions = branchIfFalse(ctx.expr(), ifLabel);
+        if (emitBlockLabels()) {
+            instructions = cat(instructions,
+                    "label .thenLbl" + uid);
+        }
         instructions = cat(instructions, visit(ctx.block()));
         instructions = cat(instructions,
                 "label " + ifLabel);
@@ -308,12 +1376,32 @@ public class CompileVisitor extends MinAsmBaseVisitor<List<String>> {
 
     @Override
     public List<String> visitIfElse(MinAsmParser.IfElseContext ctx) {
-        List<String> instructions = visit(ctx.expr());
-        int uid = uid();
+        String uid = uid();
         String ifLabel = ".ifLbl" + uid;
+        String thenLabel = ".thenLbl" + uid;
         String contLabel = ".contLbl" + uid;
-        instructions = cat(instructions,
-                "jump " + ifLabel + " equal eax 0");
+
+        // the block laid out first pays for the jump over the other, so the hotter one goes last
+        if (profile != null && profile.count(thenLabel) > profile.count(ifLabel)) {
+            List<String> instructions = branchIfTrue(ctx.expr(), thenLabel);
+            List<String> thenBlock = visit(ctx.block(0));
+            instructions = cat(instructions,
+                    "label " + ifLabel);
+            instructions = cat(instructions, visit(ctx.block(1)));
+            instructions = cat(instructions,
+                    "jump " + contLabel + " always null null",
+                    "label " + thenLabel);
+            instructions = cat(instructions, thenBlock);
+            instructions = cat(instructions,
+                    "label " + contLabel);
+            return instructions;
+        }
+
+        List<String> instructions = branchIfFalse(ctx.expr(), ifLabel);
+        if (emitBlockLabels()) {
+            instructions = cat(instructions,
+                    "label " + thenLabel);
+        }
         instructions = cat(instructions, visit(ctx.block(0)));
         instructions = cat(instructions,
                 "jump " + contLabel + " always null null",
@@ -324,17 +1412,57 @@ public class CompileVisitor extends MinAsmBaseVisitor<List<String>> {
         return instructions;
     }
 
+    private static boolean readsSensor(ParseTree tree) {
+        if (tree instanceof MinAsmParser.SensorContext) {
+            return true;
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            if (readsSensor(tree.getChild(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<String> loopBody(MinAsmParser.WhileLoopContext ctx) {
+        List<String> body = visit(ctx.block());
+        if (idleWait != null && body.isEmpty() && readsSensor(ctx.expr())) {
+            return cat("wait " + idleWait);
+        }
+        return body;
+    }
+
     @Override
     public List<String> visitWhileLoop(MinAsmParser.WhileLoopContext ctx) {
-        int uid = uid();
+        String uid = uid();
         List<String> instructions;
         String whileLabel = ".whileLbl" + uid;
+        String bodyLabel = ".bodyLbl" + uid;
         String contLabel = ".contLbl" + uid;
+
+        // a loop that usually iterates more than once tests its condition at the bottom
+        // task loops keep their test at the top, where the back jump can yield with no register live
+        if (profile != null && currentTask == null && profile.count(bodyLabel) > profile.count(contLabel)) {
+            List<String> condition = branchIfTrue(ctx.expr(), bodyLabel);
+            instructions = cat(
+                    "jump " + whileLabel + " always null null",
+                    "label " + bodyLabel);
+            instructions = cat(instructions, loopBody(ctx));
+            instructions = cat(instructions,
+                    "label " + whileLabel);
+            instructions = cat(instructions, condition);
+            instructions = cat(instructions,
+                    "label " + contLabel);
+            return instructions;
+        }
+
         instructions = cat("label " + whileLabel);
-        instructions = cat(instructions, visit(ctx.expr()));
-        instructions = cat(instructions,
-                "jump " + contLabel + " equal eax 0");
-        instructions = cat(instructions, visit(ctx.block()));
+        instructions = cat(instructions, branchIfFalse(ctx.expr(), contLabel));
+        if (emitBlockLabels()) {
+            instructions = cat(instructions,
+                    "label " + bodyLabel);
+        }
+        instructions = cat(instructions, loopBody(ctx));
         instructions = cat(instructions,
                 "jump " + whileLabel + " always null null",
                 "label " + contLabel);
@@ -355,48 +1483,231 @@ public class CompileVisitor extends MinAsmBaseVisitor<List<String>> {
 
     @Override
     public List<String> visitFunction(MinAsmParser.FunctionContext ctx) {
+        String name = ctx.ID(0).getText();
+        List<String> params = new ArrayList<>();
+        Map<String, String> names = new HashMap<>();
+        for (int i = 1; i < ctx.ID().size(); i++) {
+            params.add(parameterName(name, ctx.ID(i).getText()));
+            names.put(ctx.ID(i).getText(), params.get(params.size() - 1));
+        }
+
+        Integer task = currentTask;
+        boolean outerFunction = inFunction;
+        String outerReturn = returnLabel;
+        Map<String, String> outerNames = parameterNames;
+        currentTask = null;
+        inFunction = true;
+        returnLabel = null;
+        parameterNames = names;
         List<String> instructions = visit(ctx.block());
-        functions.put(ctx.ID(0).getText(), instructions);
+        if (returnLabel != null) {
+            // a return at the end falls through to the label instead
+            String returnJump = "jump " + returnLabel + " always null null";
+            if (!instructions.isEmpty() && instructions.get(instructions.size() - 1).equals(returnJump)) {
+                instructions = instructions.subList(0, instructions.size() - 1);
+            }
+            instructions = cat(instructions, "label " + returnLabel);
+        }
+        currentTask = task;
+        inFunction = outerFunction;
+        returnLabel = outerReturn;
+        parameterNames = outerNames;
+
+        functions.put(name, instructions);
+        functionParams.put(name, params);
+        lookupTables.remove(name);
+        declaredFunctions.put(name, instructions);
+        if (ctx.lut() != null) {
+            return lookupTable(name, params, ctx.lut());
+        }
         return cat();
     }
 
+    // reserves the cells of a lookup table after the ones already used in its bank
+    private LookupTable allocateLookupTable(String name, int paramCount, MinAsmParser.LutContext ctx) {
+        String bank = ctx.ID().getText();
+        if (paramCount != 1) {
+            throw new RuntimeException("lookup table function must take one parameter: " + name);
+        }
+        if (bank.equals(target.getBank())) {
+            throw new RuntimeException(String.format("lookup table %s can't use %s, which holds the stack", name, target.getBank()));
+        }
+
+        int lo, hi;
+        try {
+            lo = Integer.parseInt(ctx.integer(0).getText());
+            hi = Integer.parseInt(ctx.integer(1).getText());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("lookup table bounds must be whole numbers: " + name);
+        }
+        if (hi < lo) {
+            throw new RuntimeException("lookup table is empty: " + name);
+        }
+
+        int base = bankUsage.getOrDefault(bank, 0);
+        LookupTable table = new LookupTable(bank, base, lo, hi);
+        if (base + table.size() > TargetProfile.capacity(bank)) {
+            throw new RuntimeException(String.format("lookup table %s doesn't fit in %s", name, bank));
+        }
+        bankUsage.put(bank, base + table.size());
+        return table;
+    }
+
+    // fills the table the first time the program gets here; the flag variable keeps later runs from refilling it
+    private List<String> lookupTable(String name, List<String> params, MinAsmParser.LutContext ctx) {
+        LookupTable table = allocateLookupTable(name, params.size(), ctx);
+        String doneLabel = ".lutLbl" + uid();
+        String filled = "lut_" + name;
+        List<String> instructions = cat(String.format("jump %s equal %s 1", doneLabel, filled));
+        for (int argument = table.getLo(); argument <= table.getHi(); argument++) {
+            Map<String, Double> variables = new HashMap<>();
+            variables.put("bp", 0.0);
+            variables.put(params.get(0), (double) argument);
+            Map<String, Double> result = ConstantEvaluator.evaluate(functions.get(name), variables, target.getBank());
+            if (result == null || !result.containsKey("eax") || result.get("bp") != 0) {
+                throw new RuntimeException(String.format("lookup table function %s can't be evaluated at %d", name, argument));
+            }
+            instructions = cat(instructions,
+                    String.format("write %s %s %d", formatNumber(result.get("eax")), table.getBank(), table.cell(argument)));
+        }
+
+        lookupTables.put(name, table);
+        return cat(instructions,
+                String.format("set %s 1", filled),
+                "label " + doneLabel);
+    }
+
+    @Override
+    public List<String> visitReturnStmt(MinAsmParser.ReturnStmtContext ctx) {
+        if (!inFunction) {
+            throw new RuntimeException("return outside of a function");
+        }
+        if (returnLabel == null) {
+            returnLabel = ".retLbl" + uid();
+        }
+        return cat(visit(ctx.expr()), "jump " + returnLabel + " always null null");
+    }
+
     @Override
     public List<String> visitPrint(MinAsmParser.PrintContext ctx) {
-        List<String> out = new ArrayList<>();
+        return cat(printInstructions(ctx.expr()), "printflush " + target.getMessage());
+    }
+
+    @Override
+    public List<String> visitPrintflush(MinAsmParser.PrintflushContext ctx) {
+        String message = ctx.ID() != null ? ctx.ID().getText() : target.getMessage();
+        return cat("printflush " + message);
+    }
+
+    @Override
+    public List<String> visitDraw(MinAsmParser.DrawContext ctx) {
+        StringBuilder instruction = new StringBuilder("draw " + ctx.atom().getText());
         for (MinAsmParser.ExprContext ec : ctx.expr()) {
             MinAsmParser.AtomContext atom = getAtomExpr(ec);
+            Double value = foldConstant(ec);
             if (atom != null) {
-                out.add("print " + atom.getText());
+                instruction.append(" ").append(variable(atom.getText()));
+            } else if (value != null) {
+                instruction.append(" ").append(formatNumber(value));
             } else {
-                out = cat(out, visit(ec));
-                out.add("print eax");
+                throw new RuntimeException("draw arguments must be atoms or constant expressions: " + ec.getText());
             }
         }
-        out.add("printflush " + MESSAGE);
-        return out;
+        return cat(instruction.toString());
     }
 
     @Override
-    public List<String> visitDraw(MinAsmParser.DrawContext ctx) {
-        String e1 = ctx.atom(0).getText();
-        String e2 = ctx.atom(1).getText();
-        String e3 = ctx.atom(2).getText();
-        String e4 = ctx.atom(3).getText();
-        String e5 = ctx.atom(4).getText();
-        String e6 = ctx.atom(5).getText();
-        String e7 = ctx.atom(6).getText();
-        String instruction = String.format("draw %s %s %s %s %s %s %s", e1, e2, e3, e4, e5, e6, e7);
-        return cat(instruction);
+    public List<String> visitDrawflush(MinAsmParser.DrawflushContext ctx) {
+        String display = ctx.ID() != null ? ctx.ID().getText() : target.getDisplay();
+        return cat("drawflush " + display);
     }
 
     @Override
-    public List<String> visitDrawflush(MinAsmParser.DrawflushContext ctx) {
-        return cat("drawflush " + DISPLAY);
+    public List<String> visitStable(MinAsmParser.StableContext ctx) {
+        stableSensors.add(ctx.sensor().ID(0).getText() + " @" + ctx.sensor().ID(1).getText());
+        return cat();
+    }
+
+    // channels declared in the same bank are laid out one after another in declaration order,
+    // so every processor declaring them the same way agrees on the cells
+    @Override
+    public List<String> visitChannel(MinAsmParser.ChannelContext ctx) {
+        String name = ctx.ID(0).getText();
+        String bank = ctx.ID(1).getText();
+        if (bank.equals(target.getBank())) {
+            throw new RuntimeException(String.format("channel %s can't use %s, which holds the stack", name, target.getBank()));
+        }
+        if (channels.containsKey(name)) {
+            throw new RuntimeException("duplicate channel: " + name);
+        }
+
+        int capacity;
+        try {
+            capacity = Integer.parseInt(ctx.NUMBER().getText());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("channel capacity must be a whole number: " + ctx.NUMBER().getText());
+        }
+        if (capacity < 1) {
+            throw new RuntimeException("channel capacity must be at least 1: " + name);
+        }
+
+        int base = bankUsage.getOrDefault(bank, 0);
+        if (base + Channel.cells(capacity) > TargetProfile.capacity(bank)) {
+            throw new RuntimeException(String.format("channel %s doesn't fit in %s", name, bank));
+        }
+        bankUsage.put(bank, base + Channel.cells(capacity));
+        channels.put(name, new Channel(bank, base, capacity));
+        return cat();
     }
 
+    @Override
+    public List<String> visitTask(MinAsmParser.TaskContext ctx) {
+        String name = ctx.ID().getText();
+        if (currentTask != null) {
+            throw new RuntimeException("tasks can't be nested: " + name);
+        }
+        if (tasks.containsKey(name)) {
+            throw new RuntimeException("duplicate task: " + name);
+        }
+        if (ctx.NUMBER() != null && !ctx.NUMBER().getText().matches("[1-9][0-9]*")) {
+            throw new RuntimeException("task slice must be a positive whole number: " + name);
+        }
+        tasks.put(name, ctx);
+        return cat();
+    }
+
+    // asm text holds mlog instructions separated by newlines or semicolons, jumping to labels; inside a
+    // function its parameters are named as they are in the rest of the body
     @Override
     public List<String> visitAsm(MinAsmParser.AsmContext ctx) {
         String stringText = ctx.STRING().getText();
-        return cat(stringText.substring(1, stringText.length() - 1));
+        List<String> instructions = new ArrayList<>();
+
+        for (String line : stringText.substring(1, stringText.length() - 1).split("[\\n;]")) {
+            if (line.isBlank()) {
+                continue;
+            }
+
+            Instruction instruction = Instruction.parse(line.trim());
+            try {
+                instruction.validate();
+            } catch (RuntimeException e) {
+                throw new RuntimeException("invalid asm: " + e.getMessage());
+            }
+
+            if (instruction.isJump()) {
+                if (!Instruction.isVariable(instruction.arg(0)) && !instruction.arg(0).startsWith(".")) {
+                    throw new RuntimeException("asm jumps must target a label: " + instruction);
+                }
+                asmLabels.add(instruction.arg(0));
+            }
+            StringBuilder text = new StringBuilder(instruction.getOpcode());
+            for (String arg : instruction.getArgs()) {
+                text.append(" ").append(variable(arg));
+            }
+            instructions.add(text.toString());
+        }
+
+        return instructions;
     }
 }
\ No newline at end of file
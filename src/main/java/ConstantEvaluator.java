@@ -0,0 +1,194 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// runs code that only computes on numbers at compile time, the way a processor would
+public class ConstantEvaluator {
+    public static final int STEP_LIMIT = 10000;
+
+    // the value of op a b, or null for ops that aren't pure or that the processor computes in single precision
+    public static Double op(String op, double a, double b) {
+        switch (op) {
+            case "add":
+                return a + b;
+            case "sub":
+                return a - b;
+            case "mul":
+                return a * b;
+            case "div":
+                return a / b;
+            case "idiv":
+                return Math.floor(a / b);
+            case "mod":
+                return a % b;
+            case "pow":
+                return Math.pow(a, b);
+            case "equal":
+                return Math.abs(a - b) < 0.000001 ? 1.0 : 0.0;
+            case "notEqual":
+                return Math.abs(a - b) < 0.000001 ? 0.0 : 1.0;
+            case "land":
+                return a != 0 && b != 0 ? 1.0 : 0.0;
+            case "lessThan":
+                return a < b ? 1.0 : 0.0;
+            case "lessThanEq":
+                return a <= b ? 1.0 : 0.0;
+            case "greaterThan":
+                return a > b ? 1.0 : 0.0;
+            case "greaterThanEq":
+                return a >= b ? 1.0 : 0.0;
+            case "strictEqual":
+                return a == b ? 1.0 : 0.0;
+            case "shl":
+                return (double) ((long) a << (long) b);
+            case "shr":
+                return (double) ((long) a >> (long) b);
+            case "or":
+                return (double) ((long) a | (long) b);
+            case "and":
+                return (double) ((long) a & (long) b);
+            case "xor":
+                return (double) ((long) a ^ (long) b);
+            case "not":
+                return (double) ~(long) a;
+            case "max":
+                return Math.max(a, b);
+            case "min":
+                return Math.min(a, b);
+            case "abs":
+                return Math.abs(a);
+            case "log":
+                return Math.log(a);
+            case "log10":
+                return Math.log10(a);
+            case "floor":
+                return Math.floor(a);
+            case "ceil":
+                return Math.ceil(a);
+            case "sqrt":
+                return Math.sqrt(a);
+            case "sin":
+                return Math.sin(Math.toRadians(a));
+            case "cos":
+                return Math.cos(Math.toRadians(a));
+            case "tan":
+                return Math.tan(Math.toRadians(a));
+            case "asin":
+                return Math.toDegrees(Math.asin(a));
+            case "acos":
+                return Math.toDegrees(Math.acos(a));
+            case "atan":
+                return Math.toDegrees(Math.atan(a));
+            default:
+                return null;
+        }
+    }
+
+    private static Double value(String token, Map<String, Double> variables) {
+        if (token.equals("true")) {
+            return 1.0;
+        } else if (token.equals("false")) {
+            return 0.0;
+        } else if (Instruction.isVariable(token)) {
+            return variables.get(token);
+        }
+
+        try {
+            return Double.parseDouble(token);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // returns the final value of every variable, starting from the ones given, or null if the code reads
+    // anything else, has a side effect or takes more than STEP_LIMIT steps; the only memory it may use is
+    // the stack in stackBank, addressed through bp
+    public static Map<String, Double> evaluate(List<String> instructions, Map<String, Double> variables, String stackBank) {
+        Map<String, Integer> labels = new HashMap<>();
+        for (int line = 0; line < instructions.size(); line++) {
+            String labelName = LabelFixer.labelName(instructions.get(line));
+            if (labelName != null) {
+                labels.put(labelName, line);
+            }
+        }
+
+        Map<String, Double> state = new LinkedHashMap<>(variables);
+        Map<Double, Double> stack = new HashMap<>();
+        int line = 0;
+        for (int steps = 0; line < instructions.size(); steps++) {
+            if (steps == STEP_LIMIT) {
+                return null;
+            }
+
+            Instruction instruction = Instruction.parse(instructions.get(line));
+            line++;
+            switch (instruction.getOpcode()) {
+                case "label":
+                    break;
+                case "set": {
+                    Double a = value(instruction.arg(1), state);
+                    if (a == null || !Instruction.isVariable(instruction.arg(0))) {
+                        return null;
+                    }
+                    state.put(instruction.arg(0), a);
+                    break;
+                }
+                case "op": {
+                    Double a = value(instruction.arg(2), state);
+                    // unary ops leave their second operand null
+                    Double b = instruction.arg(3).equals("null") ? Double.valueOf(0) : value(instruction.arg(3), state);
+                    Double result = a == null || b == null ? null : op(instruction.arg(0), a, b);
+                    if (result == null || !Double.isFinite(result) || !Instruction.isVariable(instruction.arg(1))) {
+                        return null;
+                    }
+                    state.put(instruction.arg(1), result);
+                    break;
+                }
+                case "jump": {
+                    Integer target = labels.get(instruction.arg(0));
+                    if (target == null) {
+                        return null;
+                    }
+                    if (instruction.arg(1).equals("always")) {
+                        line = target;
+                        break;
+                    }
+                    Double a = value(instruction.arg(2), state);
+                    Double b = value(instruction.arg(3), state);
+                    Double taken = a == null || b == null ? null : op(instruction.arg(1), a, b);
+                    if (taken == null) {
+                        return null;
+                    }
+                    if (taken != 0) {
+                        line = target;
+                    }
+                    break;
+                }
+                case "write": {
+                    Double a = value(instruction.arg(0), state);
+                    Double bp = state.get("bp");
+                    if (a == null || bp == null || !instruction.arg(1).equals(stackBank) || !instruction.arg(2).equals("bp")) {
+                        return null;
+                    }
+                    stack.put(bp, a);
+                    break;
+                }
+                case "read": {
+                    Double bp = state.get("bp");
+                    Double a = bp == null ? null : stack.get(bp);
+                    if (a == null || !instruction.arg(1).equals(stackBank) || !instruction.arg(2).equals("bp")
+                            || !Instruction.isVariable(instruction.arg(0))) {
+                        return null;
+                    }
+                    state.put(instruction.arg(0), a);
+                    break;
+                }
+                default:
+                    return null;
+            }
+        }
+
+        return state;
+    }
+}
@@ -0,0 +1,413 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class ControlFlowGraph {
+
+    public static class Block {
+        private final int index;
+        private final int start;
+        private int end;
+        private final List<String> labels = new ArrayList<>();
+        private final List<Block> successors = new ArrayList<>();
+        private final List<Block> predecessors = new ArrayList<>();
+        private Block callee = null;
+
+        private Block(int index, int start) {
+            this.index = index;
+            this.start = start;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        // first instruction of the block, including its leading labels
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        public List<String> getLabels() {
+            return labels;
+        }
+
+        public List<Block> getSuccessors() {
+            return successors;
+        }
+
+        public List<Block> getPredecessors() {
+            return predecessors;
+        }
+
+        // the block a call at the end of this one jumps to, which comes back to the next block, or null
+        public Block getCallee() {
+            return callee;
+        }
+    }
+
+    // a natural loop: the header and every block that can reach a back edge without passing it
+    public static class Loop {
+        private final Block header;
+        private final Set<Block> blocks = new HashSet<>();
+        private Loop parent = null;
+        private final List<Loop> children = new ArrayList<>();
+
+        private Loop(Block header) {
+            this.header = header;
+            blocks.add(header);
+        }
+
+        public Block getHeader() {
+            return header;
+        }
+
+        public Set<Block> getBlocks() {
+            return blocks;
+        }
+
+        public boolean contains(Block block) {
+            return blocks.contains(block);
+        }
+
+        public Loop getParent() {
+            return parent;
+        }
+
+        public List<Loop> getChildren() {
+            return children;
+        }
+    }
+
+    private final List<String> instructions;
+    private final List<Block> blocks = new ArrayList<>();
+    private final Map<String, Block> labelBlocks = new HashMap<>();
+    private final List<Block> callees = new ArrayList<>();
+    private BitSet[] dominators = null;
+    private List<Loop> loops = null;
+    private List<Set<String>> liveIn = null;
+
+    public ControlFlowGraph(List<String> instructions) {
+        this.instructions = instructions;
+
+        Block current = null;
+        boolean split = true;
+        for (int line = 0; line < instructions.size(); line++) {
+            Instruction instruction = Instruction.parse(instructions.get(line));
+
+            if (instruction.isLabel() && (current == null || current.end > current.start + current.labels.size())) {
+                split = true;
+            }
+
+            if (split) {
+                if (current != null) {
+                    current.end = line;
+                }
+                current = new Block(blocks.size(), line);
+                blocks.add(current);
+                split = false;
+            }
+
+            if (instruction.isLabel()) {
+                current.labels.add(instruction.arg(0));
+                labelBlocks.put(instruction.arg(0), current);
+            }
+
+            current.end = line + 1;
+            split = instruction.isJump() || instruction.getOpcode().equals("end") || writesCounter(instruction);
+        }
+
+        for (Block block : blocks) {
+            Instruction last = block.end > block.start ? Instruction.parse(instructions.get(block.end - 1)) : null;
+            boolean fallsThrough = true;
+
+            if (last != null && last.isJump()) {
+                Block target = labelBlocks.get(last.arg(0));
+                if (target == null) {
+                    throw new RuntimeException(String.format("invalid jump to label '%s'", last.arg(0)));
+                }
+                fallsThrough = !last.arg(1).equals("always");
+                if (!fallsThrough && isCall(block)) {
+                    // the callee sets @counter back to the next line, so the call goes on there
+                    block.callee = target;
+                    if (!callees.contains(target)) {
+                        callees.add(target);
+                    }
+                    fallsThrough = true;
+                } else {
+                    addEdge(block, target);
+                }
+            } else if (last != null && (last.getOpcode().equals("end") || writesCounter(last))) {
+                // setting @counter returns or resumes a task, which goes wherever the address it was given says
+                fallsThrough = false;
+            }
+
+            if (fallsThrough && block.index + 1 < blocks.size()) {
+                addEdge(block, blocks.get(block.index + 1));
+            }
+        }
+    }
+
+    // an unknown instruction is taken to write @counter if it names it
+    private static boolean writesCounter(Instruction instruction) {
+        List<String> writes = instruction.getWrites();
+        return writes != null ? writes.contains("@counter") : instruction.getArgs().contains("@counter");
+    }
+
+    // a jump always right after saving the address of the line following it, as subroutine calls and task
+    // yields do
+    private boolean isCall(Block block) {
+        if (block.end - 2 < block.start + block.labels.size()) {
+            return false;
+        }
+        Instruction save = Instruction.parse(instructions.get(block.end - 2));
+        return save.getOpcode().equals("op") && save.arg(0).equals("add")
+                && save.arg(2).equals("@counter") && save.arg(3).equals("1");
+    }
+
+    private static void addEdge(Block from, Block to) {
+        if (!from.successors.contains(to)) {
+            from.successors.add(to);
+            to.predecessors.add(from);
+        }
+    }
+
+    public List<String> getInstructions() {
+        return instructions;
+    }
+
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    public Block getBlock(String label) {
+        return labelBlocks.get(label);
+    }
+
+    // blocks entered from outside the edges: the entry and every callee
+    private boolean isRoot(Block block) {
+        return block.index == 0 || callees.contains(block);
+    }
+
+    private BitSet reachable() {
+        BitSet reachable = new BitSet();
+        Deque<Block> work = new ArrayDeque<>();
+        if (!blocks.isEmpty()) {
+            reachable.set(0);
+            work.add(blocks.get(0));
+        }
+        while (!work.isEmpty()) {
+            Block block = work.remove();
+            List<Block> next = new ArrayList<>(block.successors);
+            if (block.callee != null) {
+                next.add(block.callee);
+            }
+            for (Block successor : next) {
+                if (!reachable.get(successor.index)) {
+                    reachable.set(successor.index);
+                    work.add(successor);
+                }
+            }
+        }
+        return reachable;
+    }
+
+    private void computeDominators() {
+        BitSet reachable = reachable();
+        dominators = new BitSet[blocks.size()];
+        for (Block block : blocks) {
+            dominators[block.index] = new BitSet();
+            if (isRoot(block)) {
+                dominators[block.index].set(block.index);
+            } else {
+                dominators[block.index].set(0, blocks.size());
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Block block : blocks) {
+                if (isRoot(block) || !reachable.get(block.index)) {
+                    continue;
+                }
+
+                BitSet dominated = new BitSet();
+                dominated.set(0, blocks.size());
+                for (Block predecessor : block.predecessors) {
+                    if (reachable.get(predecessor.index)) {
+                        dominated.and(dominators[predecessor.index]);
+                    }
+                }
+                dominated.set(block.index);
+
+                if (!dominated.equals(dominators[block.index])) {
+                    dominators[block.index] = dominated;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    // whether every path from the entry to b passes through a, ignoring unreachable code; a callee
+    // is only dominated by itself
+    public boolean dominates(Block a, Block b) {
+        if (dominators == null) {
+            computeDominators();
+        }
+        return dominators[b.index].get(a.index);
+    }
+
+    private void computeLoops() {
+        BitSet reachable = reachable();
+        Map<Block, Loop> headers = new LinkedHashMap<>();
+
+        for (Block block : blocks) {
+            if (!reachable.get(block.index)) {
+                continue;
+            }
+            for (Block successor : block.successors) {
+                if (!dominates(successor, block)) {
+                    continue;
+                }
+
+                Loop loop = headers.computeIfAbsent(successor, Loop::new);
+                Deque<Block> work = new ArrayDeque<>();
+                if (loop.blocks.add(block)) {
+                    work.add(block);
+                }
+                while (!work.isEmpty()) {
+                    for (Block predecessor : work.remove().predecessors) {
+                        if (reachable.get(predecessor.index) && loop.blocks.add(predecessor)) {
+                            work.add(predecessor);
+                        }
+                    }
+                }
+            }
+        }
+
+        loops = new ArrayList<>(headers.values());
+        loops.sort(Comparator.comparingInt(loop -> loop.blocks.size()));
+
+        // the parent of a loop is the smallest other loop containing its header
+        for (int i = 0; i < loops.size(); i++) {
+            Loop loop = loops.get(i);
+            for (int j = i + 1; j < loops.size(); j++) {
+                if (loops.get(j).blocks.containsAll(loop.blocks)) {
+                    loop.parent = loops.get(j);
+                    loops.get(j).children.add(loop);
+                    break;
+                }
+            }
+        }
+    }
+
+    // natural loops, innermost first
+    public List<Loop> getLoops() {
+        if (loops == null) {
+            computeLoops();
+        }
+        return loops;
+    }
+
+    private Set<String> allVariables() {
+        Set<String> variables = new HashSet<>();
+        for (String line : instructions) {
+            for (String arg : Instruction.parse(line).getArgs()) {
+                if (Instruction.isVariable(arg)) {
+                    variables.add(arg);
+                }
+            }
+        }
+        return variables;
+    }
+
+    // blocks with no successors end the program, which starts again at the entry with its variables kept;
+    // a call also reads what its callee does, but a return through @counter isn't followed back
+    private void computeLiveness() {
+        Set<String> everything = null;
+        List<Set<String>> uses = new ArrayList<>();
+        List<Set<String>> defs = new ArrayList<>();
+
+        for (Block block : blocks) {
+            Set<String> use = new HashSet<>();
+            Set<String> def = new HashSet<>();
+            for (int line = block.start; line < block.end; line++) {
+                Instruction instruction = Instruction.parse(instructions.get(line));
+                List<String> reads = instruction.getReads();
+                if (reads == null) {
+                    if (everything == null) {
+                        everything = allVariables();
+                    }
+                    reads = new ArrayList<>(everything);
+                }
+                for (String read : reads) {
+                    if (!def.contains(read)) {
+                        use.add(read);
+                    }
+                }
+                List<String> writes = instruction.getWrites();
+                if (writes != null) {
+                    def.addAll(writes);
+                }
+            }
+            uses.add(use);
+            defs.add(def);
+        }
+
+        liveIn = new ArrayList<>();
+        for (Block block : blocks) {
+            liveIn.add(new HashSet<>(uses.get(block.index)));
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = blocks.size() - 1; i >= 0; i--) {
+                Block block = blocks.get(i);
+                Set<String> in = new HashSet<>(getLiveOut(block));
+                in.removeAll(defs.get(i));
+                in.addAll(uses.get(i));
+                if (!in.equals(liveIn.get(i))) {
+                    liveIn.set(i, in);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    public Set<String> getLiveIn(Block block) {
+        if (liveIn == null) {
+            computeLiveness();
+        }
+        return liveIn.get(block.index);
+    }
+
+    public Set<String> getLiveOut(Block block) {
+        if (liveIn == null) {
+            computeLiveness();
+        }
+        Set<String> out = new HashSet<>();
+        if (block.successors.isEmpty()) {
+            out.addAll(liveIn.get(0));
+        }
+        for (Block successor : block.successors) {
+            out.addAll(liveIn.get(successor.index));
+        }
+        if (block.callee != null) {
+            out.addAll(liveIn.get(block.callee.index));
+        }
+        return out;
+    }
+}
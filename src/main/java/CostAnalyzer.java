@@ -0,0 +1,173 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// static instruction counts and worst case paths, where a path goes through each loop once
+public class CostAnalyzer {
+    public static final int MICRO_RATE = 2;
+    public static final int LOGIC_RATE = 8;
+    public static final int HYPER_RATE = 25;
+
+    public static class Cost {
+        private final String name;
+        private final int instructions;
+        private final int worstPath;
+
+        private Cost(String name, int instructions, int worstPath) {
+            this.name = name;
+            this.instructions = instructions;
+            this.worstPath = worstPath;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getInstructions() {
+            return instructions;
+        }
+
+        public int getWorstPath() {
+            return worstPath;
+        }
+
+        // ticks the worst path takes at the given instructions per tick
+        public double ticks(int rate) {
+            return (double) worstPath / rate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d instructions, worst path %d (micro %.2f, logic %.2f, hyper %.2f ticks)",
+                    name, instructions, worstPath, ticks(MICRO_RATE), ticks(LOGIC_RATE), ticks(HYPER_RATE));
+        }
+    }
+
+    private static int size(ControlFlowGraph.Block block) {
+        return block.getEnd() - block.getStart() - block.getLabels().size();
+    }
+
+    // successors with each back edge replaced by edges to the exits of its loop, so a path
+    // runs through a loop once and then leaves it
+    private static List<ControlFlowGraph.Block> successors(ControlFlowGraph graph, ControlFlowGraph.Block block) {
+        List<ControlFlowGraph.Block> successors = new ArrayList<>();
+        for (ControlFlowGraph.Block successor : block.getSuccessors()) {
+            if (!graph.dominates(successor, block)) {
+                successors.add(successor);
+                continue;
+            }
+
+            for (ControlFlowGraph.Loop loop : graph.getLoops()) {
+                if (loop.getHeader() != successor) {
+                    continue;
+                }
+                for (ControlFlowGraph.Block inLoop : loop.getBlocks()) {
+                    for (ControlFlowGraph.Block exit : inLoop.getSuccessors()) {
+                        if (!loop.contains(exit) && !successors.contains(exit)) {
+                            successors.add(exit);
+                        }
+                    }
+                }
+            }
+        }
+        return successors;
+    }
+
+    // longest path from block over the blocks allowed, never following an edge back into the path; a call
+    // adds the longest path through its callee, wherever that is, before going on
+    private static int longestPath(ControlFlowGraph graph, ControlFlowGraph.Block block, Set<ControlFlowGraph.Block> allowed,
+                                   Map<ControlFlowGraph.Block, Integer> memo, Set<ControlFlowGraph.Block> path,
+                                   Map<ControlFlowGraph.Block, Integer> calleeMemo) {
+        Integer known = memo.get(block);
+        if (known != null) {
+            return known;
+        }
+
+        path.add(block);
+        int longest = 0;
+        for (ControlFlowGraph.Block successor : successors(graph, block)) {
+            if ((allowed == null || allowed.contains(successor)) && !path.contains(successor)) {
+                longest = Math.max(longest, longestPath(graph, successor, allowed, memo, path, calleeMemo));
+            }
+        }
+        int call = 0;
+        ControlFlowGraph.Block callee = block.getCallee();
+        if (callee != null && !path.contains(callee)) {
+            call = longestPath(graph, callee, null, calleeMemo, path, calleeMemo);
+        }
+        path.remove(block);
+
+        int cost = size(block) + call + longest;
+        memo.put(block, cost);
+        return cost;
+    }
+
+    private static int longestPath(ControlFlowGraph graph, ControlFlowGraph.Block block, Set<ControlFlowGraph.Block> allowed) {
+        Map<ControlFlowGraph.Block, Integer> memo = new HashMap<>();
+        return longestPath(graph, block, allowed, memo, new HashSet<>(), allowed == null ? memo : new HashMap<>());
+    }
+
+    private static int totalSize(Iterable<ControlFlowGraph.Block> blocks) {
+        int total = 0;
+        for (ControlFlowGraph.Block block : blocks) {
+            total += size(block);
+        }
+        return total;
+    }
+
+    public static Cost analyzeProgram(List<String> instructions) {
+        ControlFlowGraph graph = new ControlFlowGraph(instructions);
+        int worstPath = graph.getBlocks().isEmpty() ? 0 : longestPath(graph, graph.getBlocks().get(0), null);
+        return new Cost("program", totalSize(graph.getBlocks()), worstPath);
+    }
+
+    // a function body is costed as one inlined copy
+    public static Cost analyzeFunction(String name, List<String> body) {
+        if (!LabelFixer.unresolvedLabels(body).isEmpty()) {
+            int size = SizeOptimizer.size(body);
+            return new Cost("function " + name, size, size);
+        }
+
+        Cost cost = analyzeProgram(body);
+        return new Cost("function " + name, cost.instructions, cost.worstPath);
+    }
+
+    // loops innermost first, with the worst path of one iteration
+    public static List<Cost> analyzeLoops(List<String> instructions) {
+        ControlFlowGraph graph = new ControlFlowGraph(instructions);
+        List<Cost> costs = new ArrayList<>();
+
+        for (ControlFlowGraph.Loop loop : graph.getLoops()) {
+            ControlFlowGraph.Block header = loop.getHeader();
+            int address = 0;
+            for (int line = 0; line < header.getStart(); line++) {
+                if (LabelFixer.labelName(instructions.get(line)) == null) {
+                    address++;
+                }
+            }
+
+            String name = "loop at " + address;
+            if (!header.getLabels().isEmpty()) {
+                name += " (" + header.getLabels().get(0) + ")";
+            }
+
+            costs.add(new Cost(name, totalSize(loop.getBlocks()),
+                    longestPath(graph, header, loop.getBlocks())));
+        }
+
+        return costs;
+    }
+
+    // throws if one iteration of any loop can take more than budget instructions
+    public static void checkBudget(List<Cost> loops, int budget) {
+        for (Cost loop : loops) {
+            if (loop.worstPath > budget) {
+                throw new RuntimeException(String.format("%s takes %d instructions per iteration, over the budget of %d",
+                        loop.name, loop.worstPath, budget));
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.List;
+
+// what code costs on a target, in instructions it takes up and ticks it runs for; choices between
+// faster and smaller code are made here so every pass weighs them the same way
+public class CostModel {
+    // a task's turn lasts as long as this many instructions take on a logic processor
+    private static final int LOGIC_SLICE = 50;
+
+    private final TargetProfile target;
+
+    public CostModel(TargetProfile target) {
+        this.target = target;
+    }
+
+    public TargetProfile getTarget() {
+        return target;
+    }
+
+    // instructions saved by keeping one copy of a length instruction sequence used in calls places: each
+    // call sets its return address and jumps, and the copy jumps back
+    public static int subroutineSavings(int calls, int length) {
+        return calls * length - (2 * calls + length + 1);
+    }
+
+    public double ticks(int instructions) {
+        return (double) instructions / target.getRate();
+    }
+
+    // the instructions a task runs before it yields, so a turn takes about as long on every processor
+    public int taskSlice() {
+        return Math.max(1, LOGIC_SLICE * target.getRate() / CostAnalyzer.LOGIC_RATE);
+    }
+
+    public boolean fits(List<String> instructions) {
+        return target.getLimit() == null || SizeOptimizer.size(instructions) <= target.getLimit();
+    }
+
+    // shrinks a program that is too big for the target: tails are merged, which costs nothing at run time,
+    // then the sequences saving the most are outlined until it fits, each one slowing it down by a call
+    public List<String> fit(List<String> instructions) {
+        if (fits(instructions)) {
+            return instructions;
+        }
+        List<String> merged = SizeOptimizer.mergeTails(instructions);
+        if (fits(merged)) {
+            return merged;
+        }
+        return SizeOptimizer.outline(merged, target.getLimit());
+    }
+
+    // throws if a program of size instructions doesn't fit the target
+    public void checkLimit(int size) {
+        if (target.getLimit() != null && size > target.getLimit()) {
+            throw new RuntimeException(String.format("program takes %d instructions, over the limit of %d for a %s processor",
+                    size, target.getLimit(), target.getProcessor()));
+        }
+    }
+}
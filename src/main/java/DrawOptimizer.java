@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DrawOptimizer {
+    public static final int GRAPHICS_BUFFER_LIMIT = 256;
+
+    public static List<String> optimize(List<String> instructions) {
+        return optimize(instructions, TargetProfile.defaults().getDisplay());
+    }
+
+    public static List<String> optimize(List<String> instructions, String display) {
+        return insertFlushes(removeRedundantState(instructions), display);
+    }
+
+    private static String stateKind(Instruction instruction) {
+        switch (instruction.arg(0)) {
+            case "color":
+            case "col":
+                return "color";
+            case "stroke":
+                return "stroke";
+            default:
+                return null;
+        }
+    }
+
+    // drops color and stroke commands that set the state the buffer already has on this path
+    public static List<String> removeRedundantState(List<String> instructions) {
+        return removeRedundantState(instructions, new HashMap<>());
+    }
+
+    // the same for code that goes on from where earlier code left state, which is updated for the code after it
+    public static List<String> removeRedundantState(List<String> instructions, Map<String, Instruction> state) {
+        List<String> processedInstructions = new ArrayList<>();
+
+        for (String line : instructions) {
+            // with nothing to forget, only draws matter
+            if (state.isEmpty() && !Instruction.opcode(line).equals("draw")) {
+                processedInstructions.add(line);
+                continue;
+            }
+            Instruction instruction = Instruction.parse(line);
+            String kind = instruction.getOpcode().equals("draw") ? stateKind(instruction) : null;
+
+            if (kind != null) {
+                if (instruction.equals(state.get(kind))) {
+                    continue;
+                }
+                state.put(kind, instruction);
+            } else if (instruction.isLabel() || instruction.getOpcode().equals("drawflush") || line.contains("@counter")) {
+                // saving @counter makes the next line a place to come back to, as a yield does, with
+                // whatever state other code left
+                state.clear();
+            } else {
+                List<String> writes = instruction.getWrites();
+                if (writes == null) {
+                    state.clear();
+                } else {
+                    state.values().removeIf(s -> s.getArgs().stream().anyMatch(writes::contains));
+                }
+            }
+
+            processedInstructions.add(line);
+        }
+
+        return processedInstructions;
+    }
+
+    public static List<String> insertFlushes(List<String> instructions) {
+        return insertFlushes(instructions, TargetProfile.defaults().getDisplay());
+    }
+
+    // flushes before a draw would overflow the buffer on any forward path, and before a jump back to a label when
+    // draws since it are still in the buffer, so a loop that draws can't fill it over many iterations; flushes
+    // target the next flushed display, or the given one after the last flush
+    public static List<String> insertFlushes(List<String> instructions, String display) {
+        String[] nextDisplay = new String[instructions.size()];
+        for (int line = instructions.size() - 1; line >= 0; line--) {
+            if (Instruction.opcode(instructions.get(line)).equals("drawflush")) {
+                display = Instruction.parse(instructions.get(line)).arg(0);
+            }
+            nextDisplay[line] = display;
+        }
+
+        List<String> processedInstructions = new ArrayList<>();
+        Map<String, Integer> jumpCounts = new HashMap<>();
+        // draws before each label passed so far, to tell whether a jump back to it skips over any
+        Map<String, Integer> labelDraws = new HashMap<>();
+        int draws = 0;
+        int count = 0;
+
+        for (int line = 0; line < instructions.size(); line++) {
+            // labels and jumps only matter once a draw is counted
+            switch (Instruction.opcode(instructions.get(line))) {
+                case "label": {
+                    String label = LabelFixer.labelName(instructions.get(line));
+                    labelDraws.put(label, draws);
+                    if (!jumpCounts.isEmpty()) {
+                        count = Math.max(count, jumpCounts.getOrDefault(label, 0));
+                    }
+                    break;
+                }
+                case "jump":
+                    if (count > 0) {
+                        Instruction instruction = Instruction.parse(instructions.get(line));
+                        Integer before = labelDraws.get(instruction.arg(0));
+                        if (before != null && draws > before) {
+                            processedInstructions.add("drawflush " + nextDisplay[line]);
+                            count = 0;
+                            break;
+                        }
+                        jumpCounts.merge(instruction.arg(0), count, Math::max);
+                        if (instruction.arg(1).equals("always")) {
+                            count = 0;
+                        }
+                    }
+                    break;
+                case "end":
+                case "drawflush":
+                    count = 0;
+                    break;
+                case "draw":
+                    if (count == GRAPHICS_BUFFER_LIMIT) {
+                        processedInstructions.add("drawflush " + nextDisplay[line]);
+                        count = 0;
+                    }
+                    count++;
+                    draws++;
+                    break;
+            }
+
+            processedInstructions.add(instructions.get(line));
+        }
+
+        return processedInstructions;
+    }
+}
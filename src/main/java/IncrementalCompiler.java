@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// what one compile of a source leaves for the next: the code of each chunk, kept while the chunk and
+// everything it was compiled against stay the same, and the placed labels, kept up to the first
+// instruction that changed
+public class IncrementalCompiler {
+    private static class Chunk {
+        private final List<Object> key;
+        private final CompileVisitor visitor;
+        private final List<String> output;
+
+        private Chunk(List<Object> key, CompileVisitor visitor, List<String> output) {
+            this.key = key;
+            this.visitor = visitor;
+            this.output = output;
+        }
+    }
+
+    private final Map<Integer, Chunk> chunks = new ConcurrentHashMap<>();
+    private final AtomicInteger reused = new AtomicInteger();
+    private final AtomicInteger compiled = new AtomicInteger();
+
+    // the last instructions labels were placed in, without their labels, and the result
+    private List<String> previous = null;
+    private List<String> unlabeled = null;
+    private List<String> fixed = null;
+    // for each line of previous, how many of the instructions before it aren't labels
+    private int[] lines = null;
+    // each label of previous with the line of previous that defines it and its address
+    private Map<String, int[]> labels = null;
+    private List<Integer> jumps = null;
+    // a label defined twice hides the first definition, which the next call would lose track of
+    private boolean duplicateLabels = false;
+
+    // the visitor that compiled chunk index last time and its code, if it was compiled from the same key
+    public CompileVisitor visitor(int index, List<Object> key) {
+        Chunk chunk = chunks.get(index);
+        if (chunk == null || !chunk.key.equals(key)) {
+            return null;
+        }
+        reused.incrementAndGet();
+        return chunk.visitor;
+    }
+
+    public List<String> output(int index) {
+        return chunks.get(index).output;
+    }
+
+    public void store(int index, List<Object> key, CompileVisitor visitor, List<String> output) {
+        compiled.incrementAndGet();
+        chunks.put(index, new Chunk(key, visitor, output));
+    }
+
+    // forgets the chunks past the end of a program that got shorter
+    public void retain(int count) {
+        chunks.keySet().removeIf(index -> index >= count);
+    }
+
+    public int getReused() {
+        return reused.get();
+    }
+
+    public int getCompiled() {
+        return compiled.get();
+    }
+
+    // starts counting reused and compiled chunks for another compile
+    public void reset() {
+        reused.set(0);
+        compiled.set(0);
+    }
+
+    // LabelFixer.fixLabels, placing labels again only from the first line that differs from the last call;
+    // a jump before that line is only rewritten when its label moved
+    public List<String> fixLabels(List<String> instructions) {
+        int same = 0;
+        if (previous != null && !duplicateLabels) {
+            int limit = Math.min(previous.size(), instructions.size());
+            while (same < limit && previous.get(same).equals(instructions.get(same))) {
+                same++;
+            }
+        }
+
+        boolean duplicates = false;
+        Map<String, int[]> newLabels = new HashMap<>();
+        List<String> newUnlabeled;
+        List<String> newFixed;
+        List<Integer> newJumps = new ArrayList<>();
+        int[] newLines = new int[instructions.size() + 1];
+        if (same > 0) {
+            int kept = lines[same];
+            for (Map.Entry<String, int[]> label : labels.entrySet()) {
+                if (label.getValue()[0] < same) {
+                    newLabels.put(label.getKey(), label.getValue());
+                }
+            }
+            newUnlabeled = new ArrayList<>(unlabeled.subList(0, kept));
+            newFixed = new ArrayList<>(fixed.subList(0, kept));
+            for (int jump : jumps) {
+                if (jump < kept) {
+                    newJumps.add(jump);
+                }
+            }
+            System.arraycopy(lines, 0, newLines, 0, same + 1);
+        } else {
+            newUnlabeled = new ArrayList<>(instructions.size());
+            newFixed = new ArrayList<>(instructions.size());
+        }
+
+        for (int line = same; line < instructions.size(); line++) {
+            newLines[line] = newUnlabeled.size();
+            String labelName = LabelFixer.labelName(instructions.get(line));
+            if (labelName != null) {
+                duplicates |= newLabels.put(labelName, new int[]{line, newUnlabeled.size()}) != null;
+            } else {
+                newUnlabeled.add(instructions.get(line));
+            }
+        }
+        newLines[instructions.size()] = newUnlabeled.size();
+
+        Map<String, Integer> addresses = new HashMap<>();
+        for (Map.Entry<String, int[]> label : newLabels.entrySet()) {
+            addresses.put(label.getKey(), label.getValue()[1]);
+        }
+
+        // kept jumps whose label is now somewhere else
+        for (int jump : newJumps) {
+            String instruction = newUnlabeled.get(jump);
+            String label = LabelFixer.jumpLabel(instruction);
+            int[] old = labels.get(label);
+            if (old == null || !addresses.containsKey(label) || old[1] != addresses.get(label)) {
+                newFixed.set(jump, LabelFixer.fixJump(instruction, addresses));
+            }
+        }
+        for (int line = newFixed.size(); line < newUnlabeled.size(); line++) {
+            String instruction = newUnlabeled.get(line);
+            if (LabelFixer.jumpLabel(instruction) != null) {
+                newJumps.add(line);
+            }
+            newFixed.add(LabelFixer.fixJump(instruction, addresses));
+        }
+
+        previous = new ArrayList<>(instructions);
+        unlabeled = newUnlabeled;
+        fixed = newFixed;
+        lines = newLines;
+        labels = newLabels;
+        jumps = newJumps;
+        duplicateLabels = duplicates;
+        return new ArrayList<>(newFixed);
+    }
+}
@@ -0,0 +1,250 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Instruction {
+    private final String opcode;
+    private final List<String> args;
+
+    private Instruction(String opcode, List<String> args) {
+        this.opcode = opcode;
+        this.args = args;
+    }
+
+    public static Instruction parse(String line) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean inString = false;
+
+        for (char c : line.toCharArray()) {
+            if (c == '"') {
+                inString = !inString;
+            }
+
+            if (c == ' ' && !inString) {
+                if (token.length() > 0) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                }
+            } else {
+                token.append(c);
+            }
+        }
+
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+
+        if (tokens.isEmpty()) {
+            throw new RuntimeException("empty instruction");
+        }
+
+        return new Instruction(tokens.get(0), new ArrayList<>(tokens.subList(1, tokens.size())));
+    }
+
+    // the opcode of a line without splitting the rest, for passes that only look at a few opcodes
+    public static String opcode(String line) {
+        int start = 0;
+        while (start < line.length() && line.charAt(start) == ' ') {
+            start++;
+        }
+        int end = line.indexOf(' ', start);
+        return line.substring(start, end < 0 ? line.length() : end);
+    }
+
+    public static boolean isVariable(String token) {
+        return !token.isEmpty()
+                && !token.startsWith("\"")
+                && !token.startsWith("@")
+                && !token.equals("null")
+                && !token.equals("true")
+                && !token.equals("false")
+                && !Character.isDigit(token.charAt(0))
+                && !token.startsWith("-")
+                && !token.startsWith(".");
+    }
+
+    public String getOpcode() {
+        return opcode;
+    }
+
+    public List<String> getArgs() {
+        return args;
+    }
+
+    public String arg(int i) {
+        return i < args.size() ? args.get(i) : "null";
+    }
+
+    public boolean isLabel() {
+        return opcode.equals("label");
+    }
+
+    public boolean isJump() {
+        return opcode.equals("jump");
+    }
+
+    // arity and operand roles of an opcode; arguments after those given default to null in mlog
+    private static class Spec {
+        private final int minArgs;
+        private final int maxArgs;
+        private final int[] writes;
+        private final int[] reads;
+
+        private Spec(int minArgs, int maxArgs, int[] writes, int[] reads) {
+            this.minArgs = minArgs;
+            this.maxArgs = maxArgs;
+            this.writes = writes;
+            this.reads = reads;
+        }
+    }
+
+    private static final Map<String, Spec> SPECS = new HashMap<>();
+
+    private static void spec(String opcode, int minArgs, int maxArgs, int[] writes, int[] reads) {
+        SPECS.put(opcode, new Spec(minArgs, maxArgs, writes, reads));
+    }
+
+    private static int[] at(int... indices) {
+        return indices;
+    }
+
+    static {
+        spec("read", 3, 3, at(0), at(1, 2));
+        spec("write", 3, 3, at(), at(0, 1, 2));
+        spec("draw", 1, 7, at(), at(1, 2, 3, 4, 5, 6));
+        spec("print", 1, 1, at(), at(0));
+        spec("format", 1, 1, at(), at(0));
+        spec("drawflush", 1, 1, at(), at(0));
+        spec("printflush", 1, 1, at(), at(0));
+        spec("getlink", 2, 2, at(0), at(1));
+        spec("control", 2, 6, at(), at(1, 2, 3, 4, 5));
+        spec("radar", 7, 7, at(6), at(4, 5));
+        spec("sensor", 3, 3, at(0), at(1, 2));
+        spec("set", 2, 2, at(0), at(1));
+        spec("op", 3, 4, at(1), at(2, 3));
+        spec("lookup", 3, 3, at(1), at(2));
+        spec("packcolor", 5, 5, at(0), at(1, 2, 3, 4));
+        spec("wait", 1, 1, at(), at(0));
+        spec("stop", 0, 0, at(), at());
+        spec("end", 0, 0, at(), at());
+        spec("noop", 0, 0, at(), at());
+        spec("jump", 2, 4, at(), at(2, 3));
+        spec("label", 1, 1, at(), at());
+        spec("ubind", 1, 1, at(), at(0));
+        spec("ucontrol", 1, 6, at(), at(1, 2, 3, 4, 5));
+        spec("uradar", 7, 7, at(6), at(4, 5));
+        spec("ulocate", 8, 8, at(4, 5, 6, 7), at(1, 2, 3));
+        spec("printchar", 1, 1, at(), at(0));
+        spec("select", 6, 6, at(0), at(2, 3, 4, 5));
+        spec("unpackcolor", 5, 5, at(0, 1, 2, 3), at(4));
+        spec("localeprint", 1, 1, at(), at(0));
+
+        // world processor instructions
+        spec("getblock", 4, 4, at(1), at(2, 3));
+        spec("setblock", 4, 6, at(), at(1, 2, 3, 4, 5));
+        spec("spawn", 6, 6, at(5), at(0, 1, 2, 3, 4));
+        spec("status", 3, 4, at(), at(2, 3));
+        spec("spawnwave", 3, 3, at(), at(0, 1, 2));
+        spec("setrule", 2, 6, at(), at(1, 2, 3, 4, 5));
+        spec("message", 1, 3, at(2), at(1));
+        spec("cutscene", 1, 5, at(), at(1, 2, 3, 4));
+        spec("effect", 1, 6, at(), at(1, 2, 3, 4, 5));
+        spec("explosion", 8, 9, at(), at(0, 1, 2, 3, 4, 5, 6, 7, 8));
+        spec("setrate", 1, 1, at(), at(0));
+        spec("fetch", 3, 5, at(1), at(2, 3, 4));
+        spec("getflag", 2, 2, at(0), at(1));
+        spec("setflag", 2, 2, at(), at(0, 1));
+        spec("setprop", 3, 3, at(), at(0, 1, 2));
+        spec("playsound", 1, 8, at(), at(1, 2, 3, 4, 5, 6, 7));
+        spec("setmarker", 2, 5, at(), at(1, 2, 3, 4));
+        spec("makemarker", 2, 5, at(), at(1, 2, 3, 4));
+        spec("weathersense", 2, 2, at(0), at(1));
+        spec("weatherset", 2, 2, at(), at(0, 1));
+        spec("clientdata", 3, 3, at(), at(0, 1, 2));
+        // sync both reads and writes its variable, which the table can't say, so it is left unknown
+    }
+
+    // variables the unit control subcommands that return values assign
+    private int[] ucontrolWrites() {
+        switch (arg(0)) {
+            case "within":
+                return at(4);
+            case "getBlock":
+                return at(3, 4, 5);
+            default:
+                return at();
+        }
+    }
+
+    // throws if a known opcode is given the wrong number of arguments; an unknown one, from a newer game
+    // version or left out of the table, is kept as it is and passes treat it as reading and writing anything
+    public void validate() {
+        Spec spec = SPECS.get(opcode);
+        if (spec == null) {
+            return;
+        }
+        if (args.size() < spec.minArgs || args.size() > spec.maxArgs) {
+            throw new RuntimeException(String.format("wrong number of arguments for %s: %s", opcode, this));
+        }
+    }
+
+    private int[] writePositions(Spec spec) {
+        return opcode.equals("ucontrol") ? ucontrolWrites() : spec.writes;
+    }
+
+    // variables this instruction assigns, or null if the opcode is unknown and it may assign anything
+    public List<String> getWrites() {
+        Spec spec = SPECS.get(opcode);
+        if (spec == null) {
+            return null;
+        }
+
+        List<String> writes = new ArrayList<>();
+        for (int i : writePositions(spec)) {
+            writes.add(arg(i));
+        }
+        return writes;
+    }
+
+    // variables this instruction reads, or null if the opcode is unknown and it may read anything
+    public List<String> getReads() {
+        Spec spec = SPECS.get(opcode);
+        if (spec == null) {
+            return null;
+        }
+
+        List<String> reads = new ArrayList<>();
+        int[] writes = writePositions(spec);
+        for (int i : spec.reads) {
+            if (isVariable(arg(i)) && Arrays.stream(writes).noneMatch(w -> w == i)) {
+                reads.add(arg(i));
+            }
+        }
+        return reads;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Instruction)) {
+            return false;
+        }
+        Instruction other = (Instruction) o;
+        return opcode.equals(other.opcode) && args.equals(other.args);
+    }
+
+    @Override
+    public int hashCode() {
+        return opcode.hashCode() * 31 + args.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        List<String> tokens = new ArrayList<>();
+        tokens.add(opcode);
+        tokens.addAll(args);
+        return String.join(" ", tokens);
+    }
+}
@@ -1,7 +1,10 @@
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -9,37 +12,118 @@ public class LabelFixer {
     private static final Pattern labelRegex = Pattern.compile("label (\\S+)");
     private static final Pattern jumpRegex = Pattern.compile("jump (\\S+) (.*)");
 
+    // what \s matches in a regex
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    // the first group labelRegex or jumpRegex finds, without a matcher, as every pass asks for it on every line;
+    // a jump's label is followed by a space
+    private static String firstGroup(String instruction, String keyword, boolean jump) {
+        for (int start = instruction.indexOf(keyword); start >= 0; start = instruction.indexOf(keyword, start + 1)) {
+            int from = start + keyword.length();
+            int end = from;
+            while (end < instruction.length() && !isSpace(instruction.charAt(end))) {
+                end++;
+            }
+            if (end > from && (!jump || end < instruction.length() && instruction.charAt(end) == ' ')) {
+                return instruction.substring(from, end);
+            }
+        }
+        return null;
+    }
+
+    // the label an instruction defines, or null if it isn't a label
+    public static String labelName(String instruction) {
+        return firstGroup(instruction, "label ", false);
+    }
+
+    // the label a jump targets, or null if it isn't a jump
+    public static String jumpLabel(String instruction) {
+        return firstGroup(instruction, "jump ", true);
+    }
+
+    // replaces the label of a jump with its line number, leaving other instructions unchanged
+    public static String fixJump(String instruction, Map<String, Integer> labels) {
+        if (!instruction.contains("jump ")) {
+            return instruction;
+        }
+        Matcher m = jumpRegex.matcher(instruction);
+        if (!m.find()) {
+            return instruction;
+        }
+
+        String label = m.group(1);
+        String rest = m.group(2);
+
+        if (!labels.containsKey(label)) {
+            throw new RuntimeException(String.format("invalid jump to label '%s'", label));
+        }
+
+        int jumpLine = labels.get(label);
+
+        return "jump " + jumpLine + " " + rest;
+    }
+
     public static List<String> fixLabels(List<String> instructions) {
         Map<String, Integer> labels = new HashMap<>();
-        List<String> processedInstructions = new ArrayList<>(instructions);
-
-        int line = 0;
-        while (line < processedInstructions.size()) {
-            String instruction = processedInstructions.get(line);
-            Matcher m = labelRegex.matcher(instruction);
-            if (m.find()) {
-                String labelName = m.group(1);
-                labels.put(labelName, line);
-                processedInstructions.remove(line);
+        List<String> processedInstructions = new ArrayList<>(instructions.size());
+
+        // a label is the line of the next instruction that isn't one
+        for (String instruction : instructions) {
+            String labelName = labelName(instruction);
+            if (labelName != null) {
+                labels.put(labelName, processedInstructions.size());
             } else {
-                line++;
+                processedInstructions.add(instruction);
             }
         }
 
-        for (line = 0; line < processedInstructions.size(); line++) {
-            String instruction = processedInstructions.get(line);
-            Matcher m = jumpRegex.matcher(instruction);
-            if (m.find()) {
-                String label = m.group(1);
-                String rest = m.group(2);
+        for (int line = 0; line < processedInstructions.size(); line++) {
+            processedInstructions.set(line, fixJump(processedInstructions.get(line), labels));
+        }
+
+        return processedInstructions;
+    }
+
+    private static Set<String> definedLabels(List<String> instructions) {
+        Set<String> labels = new HashSet<>();
+        for (String instruction : instructions) {
+            String labelName = labelName(instruction);
+            if (labelName != null) {
+                labels.add(labelName);
+            }
+        }
+        return labels;
+    }
 
-                if (!labels.containsKey(label)) {
-                    throw new RuntimeException(String.format("invalid jump to label '%s'", label));
-                }
+    // labels jumped to but not defined in the instructions, which a program linking them must provide
+    public static Set<String> unresolvedLabels(List<String> instructions) {
+        Set<String> labels = definedLabels(instructions);
+        Set<String> unresolved = new LinkedHashSet<>();
+        for (String instruction : instructions) {
+            String label = jumpLabel(instruction);
+            if (label != null && !labels.contains(label)) {
+                unresolved.add(label);
+            }
+        }
+        return unresolved;
+    }
 
-                int jumpLine = labels.get(label);
+    // appends suffix to every label defined in the instructions and to the jumps that target them
+    public static List<String> relocateLabels(List<String> instructions, String suffix) {
+        Set<String> labels = definedLabels(instructions);
+        List<String> processedInstructions = new ArrayList<>();
 
-                processedInstructions.set(line, String.format("jump %d %s", jumpLine, rest));
+        for (String instruction : instructions) {
+            Matcher label = labelRegex.matcher(instruction);
+            Matcher jump = jumpRegex.matcher(instruction);
+            if (label.find()) {
+                processedInstructions.add("label " + label.group(1) + suffix);
+            } else if (jump.find() && labels.contains(jump.group(1))) {
+                processedInstructions.add(String.format("jump %s%s %s", jump.group(1), suffix, jump.group(2)));
+            } else {
+                processedInstructions.add(instruction);
             }
         }
 
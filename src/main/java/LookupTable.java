@@ -0,0 +1,56 @@
+import java.util.Objects;
+
+// the results of a one parameter function for every whole number from lo to hi, stored in
+// consecutive cells of a memory bank so a call becomes a read
+public class LookupTable {
+    private final String bank;
+    private final int base;
+    private final int lo;
+    private final int hi;
+
+    public LookupTable(String bank, int base, int lo, int hi) {
+        this.bank = bank;
+        this.base = base;
+        this.lo = lo;
+        this.hi = hi;
+    }
+
+    public String getBank() {
+        return bank;
+    }
+
+    public int size() {
+        return hi - lo + 1;
+    }
+
+    public int getLo() {
+        return lo;
+    }
+
+    public int getHi() {
+        return hi;
+    }
+
+    public int cell(int argument) {
+        return base + argument - lo;
+    }
+
+    // added to an argument to get its cell
+    public int offset() {
+        return base - lo;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof LookupTable)) {
+            return false;
+        }
+        LookupTable other = (LookupTable) o;
+        return bank.equals(other.bank) && base == other.base && lo == other.lo && hi == other.hi;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(bank, base, lo, hi);
+    }
+}
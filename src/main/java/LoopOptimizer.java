@@ -0,0 +1,192 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class LoopOptimizer {
+
+    // moves instructions whose result is the same on every iteration in front of their loop;
+    // stable sensors are "block @attr" reads the program declared as never changing
+    public static List<String> hoistInvariants(List<String> instructions, Set<String> stableSensors) {
+        List<String> processedInstructions = new ArrayList<>(instructions);
+
+        // the control flow graph doesn't follow a return through @counter back to its caller, so liveness misses what runs after it
+        for (String line : processedInstructions) {
+            List<String> writes = Instruction.parse(line).getWrites();
+            if (writes != null && writes.contains("@counter")) {
+                return processedInstructions;
+            }
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            ControlFlowGraph graph = new ControlFlowGraph(processedInstructions);
+            for (ControlFlowGraph.Loop loop : graph.getLoops()) {
+                if (hoist(graph, loop, processedInstructions, stableSensors)) {
+                    changed = true;
+                    break;
+                }
+            }
+        }
+
+        return processedInstructions;
+    }
+
+    // where code that runs once before the loop can go, or -1 if the header is entered from more than one place
+    private static int preheader(ControlFlowGraph graph, ControlFlowGraph.Loop loop) {
+        ControlFlowGraph.Block header = loop.getHeader();
+        List<ControlFlowGraph.Block> outside = new ArrayList<>();
+        for (ControlFlowGraph.Block predecessor : header.getPredecessors()) {
+            if (!loop.contains(predecessor)) {
+                outside.add(predecessor);
+            }
+        }
+        if (outside.size() != 1) {
+            return -1;
+        }
+
+        ControlFlowGraph.Block predecessor = outside.get(0);
+        Instruction last = Instruction.parse(graph.getInstructions().get(predecessor.getEnd() - 1));
+        boolean jumpsToHeader = last.isJump() && header.getLabels().contains(last.arg(0));
+
+        if (predecessor.getIndex() == header.getIndex() - 1 && !jumpsToHeader) {
+            return header.getStart();
+        } else if (jumpsToHeader && last.arg(1).equals("always")) {
+            return predecessor.getEnd() - 1;
+        }
+        return -1;
+    }
+
+    private static boolean isInvariantOperand(String arg, Map<String, Integer> defs, Set<String> hoisted) {
+        if (arg.startsWith("@")) {
+            return false;
+        }
+        return !Instruction.isVariable(arg) || !defs.containsKey(arg) || hoisted.contains(arg);
+    }
+
+    private static boolean isCandidate(Instruction instruction, Set<String> stableSensors) {
+        switch (instruction.getOpcode()) {
+            case "set":
+                return true;
+            case "op":
+                return !instruction.arg(0).equals("rand");
+            case "sensor":
+                return stableSensors.contains(instruction.arg(1) + " " + instruction.arg(2));
+            default:
+                return false;
+        }
+    }
+
+    private static List<String> operands(Instruction instruction) {
+        switch (instruction.getOpcode()) {
+            case "set":
+                return Collections.singletonList(instruction.arg(1));
+            case "op":
+                return List.of(instruction.arg(2), instruction.arg(3));
+            default:
+                // the attribute of a stable sensor is a constant
+                return Collections.singletonList(instruction.arg(1));
+        }
+    }
+
+    private static boolean hoist(ControlFlowGraph graph, ControlFlowGraph.Loop loop, List<String> code, Set<String> stableSensors) {
+        int insert = preheader(graph, loop);
+        if (insert < 0) {
+            return false;
+        }
+
+        List<Integer> lines = new ArrayList<>();
+        Map<Integer, ControlFlowGraph.Block> lineBlocks = new HashMap<>();
+        Map<String, Integer> defs = new HashMap<>();
+        for (ControlFlowGraph.Block block : loop.getBlocks()) {
+            for (int line = block.getStart(); line < block.getEnd(); line++) {
+                List<String> writes = Instruction.parse(code.get(line)).getWrites();
+                if (writes == null) {
+                    return false;
+                }
+                for (String write : writes) {
+                    defs.merge(write, 1, Integer::sum);
+                }
+                lines.add(line);
+                lineBlocks.put(line, block);
+            }
+        }
+        Collections.sort(lines);
+
+        List<ControlFlowGraph.Block> exiting = new ArrayList<>();
+        List<ControlFlowGraph.Block> exits = new ArrayList<>();
+        for (ControlFlowGraph.Block block : loop.getBlocks()) {
+            for (ControlFlowGraph.Block successor : block.getSuccessors()) {
+                if (!loop.contains(successor)) {
+                    exiting.add(block);
+                    exits.add(successor);
+                }
+            }
+        }
+        // liveness is solved for the whole graph, so it waits until an instruction could move
+        Set<String> liveAtExits = null;
+        Set<String> liveAtHeader = null;
+
+        // marked in rounds, so each instruction comes after the hoisted ones it reads
+        List<Integer> hoistedLines = new ArrayList<>();
+        Set<String> hoisted = new HashSet<>();
+        boolean marked = true;
+        while (marked) {
+            marked = false;
+            for (int line : lines) {
+                Instruction instruction = Instruction.parse(code.get(line));
+                if (hoistedLines.contains(line) || !isCandidate(instruction, stableSensors)) {
+                    continue;
+                }
+
+                String dest = instruction.getWrites().get(0);
+                if (!Instruction.isVariable(dest) || defs.get(dest) != 1
+                        || !operands(instruction).stream().allMatch(arg -> isInvariantOperand(arg, defs, hoisted))) {
+                    continue;
+                }
+
+                if (liveAtHeader == null) {
+                    liveAtHeader = graph.getLiveIn(loop.getHeader());
+                    liveAtExits = new HashSet<>();
+                    for (ControlFlowGraph.Block exit : exits) {
+                        liveAtExits.addAll(graph.getLiveIn(exit));
+                    }
+                }
+                if (liveAtHeader.contains(dest)) {
+                    continue;
+                }
+
+                boolean dominatesExits = exiting.stream().allMatch(block -> graph.dominates(lineBlocks.get(line), block));
+                if (dominatesExits || !liveAtExits.contains(dest)) {
+                    hoistedLines.add(line);
+                    hoisted.add(dest);
+                    marked = true;
+                }
+            }
+        }
+
+        if (hoistedLines.isEmpty()) {
+            return false;
+        }
+
+        List<String> moved = new ArrayList<>();
+        for (int line : hoistedLines) {
+            moved.add(code.get(line));
+        }
+
+        List<Integer> removed = new ArrayList<>(hoistedLines);
+        removed.sort(Collections.reverseOrder());
+        for (int line : removed) {
+            code.remove(line);
+            if (line < insert) {
+                insert--;
+            }
+        }
+        code.addAll(insert, moved);
+        return true;
+    }
+}
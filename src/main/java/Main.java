@@ -4,29 +4,321 @@ import org.antlr.v4.runtime.tree.ParseTree;
 
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Main {
+    private static final int WATCH_POLL_MILLIS = 20;
+
+    private static int countNodes(ParseTree tree) {
+        int count = 1;
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            count += countNodes(tree.getChild(i));
+        }
+        return count;
+    }
 
     public static void main(String[] args) throws Exception {
-        File outFile = new File("src/main/java/output.txt");
-        FileWriter fout = new FileWriter(outFile);
-        BufferedWriter bw = new BufferedWriter(fout);
+        compile(args, null);
+    }
+
+    // compiles once, or with --watch every time the source changes, each compile picking up where the
+    // one before it left incremental
+    private static void compile(String[] args, IncrementalCompiler incremental) throws Exception {
+        String inputPath = "src/main/java/input.txt";
+        String outputPath = "src/main/java/output.txt";
+        boolean printStats = false;
+        String statsPath = null;
+        String instrumentPath = null;
+        String instrumentBank = Profiler.DEFAULT_BANK;
+        Profile profile = null;
+        String objectPath = null;
+        boolean stream = false;
+        boolean watch = false;
+        String superoptCache = null;
+        String level = "-O1";
+        String pipeline = null;
+        boolean verify = true;
+        String idleWait = null;
+        boolean printCost = false;
+        Integer budget = null;
+        // threads cost more to start than most programs take to compile, so they're asked for
+        int jobs = 1;
+        TargetProfile target = TargetProfile.defaults();
+        List<ObjectFile> objects = new ArrayList<>();
+        List<String> positional = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.equals("--stats")) {
+                printStats = true;
+            } else if (arg.startsWith("--stats=")) {
+                printStats = true;
+                statsPath = arg.substring("--stats=".length());
+            } else if (arg.startsWith("--instrument=")) {
+                instrumentPath = arg.substring("--instrument=".length());
+            } else if (arg.startsWith("--instrument-bank=")) {
+                instrumentBank = arg.substring("--instrument-bank=".length());
+            } else if (arg.startsWith("--profile=")) {
+                String[] paths = arg.substring("--profile=".length()).split(",");
+                if (paths.length != 2) {
+                    throw new RuntimeException("expected --profile=<blocks file>,<counts file>: " + arg);
+                }
+                profile = Profile.load(paths[0], paths[1]);
+            } else if (arg.equals("--superopt")) {
+                superoptCache = Superoptimizer.DEFAULT_CACHE;
+            } else if (arg.startsWith("--superopt=")) {
+                superoptCache = arg.substring("--superopt=".length());
+            } else if (PassManager.isPreset(arg)) {
+                level = arg;
+            } else if (arg.startsWith("--passes=")) {
+                pipeline = arg.substring("--passes=".length());
+            } else if (arg.startsWith("--idle-wait=")) {
+                idleWait = arg.substring("--idle-wait=".length());
+                try {
+                    Double.parseDouble(idleWait);
+                } catch (NumberFormatException e) {
+                    throw new RuntimeException("expected --idle-wait=<seconds>: " + arg);
+                }
+            } else if (arg.equals("--cost")) {
+                printCost = true;
+            } else if (arg.startsWith("--budget=")) {
+                try {
+                    budget = Integer.parseInt(arg.substring("--budget=".length()));
+                } catch (NumberFormatException e) {
+                    throw new RuntimeException("expected --budget=<instructions per loop iteration>: " + arg);
+                }
+            } else if (arg.startsWith("--jobs=")) {
+                try {
+                    jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+                } catch (NumberFormatException e) {
+                    throw new RuntimeException("expected --jobs=<threads>: " + arg);
+                }
+                if (jobs < 1) {
+                    throw new RuntimeException("expected --jobs=<threads>: " + arg);
+                }
+            } else if (arg.startsWith("--target=")) {
+                target = TargetProfile.parse(arg.substring("--target=".length()));
+            } else if (arg.equals("--no-verify")) {
+                verify = false;
+            } else if (arg.equals("--watch")) {
+                watch = true;
+            } else if (arg.equals("--stream")) {
+                stream = true;
+            } else if (arg.startsWith("--emit-object=")) {
+                objectPath = arg.substring("--emit-object=".length());
+            } else if (arg.startsWith("--link=")) {
+                objects.add(ObjectFile.read(arg.substring("--link=".length())));
+            } else if (arg.startsWith("--")) {
+                throw new RuntimeException("unknown option: " + arg);
+            } else {
+                positional.add(arg);
+            }
+        }
+
+        if (positional.size() > 0) {
+            inputPath = positional.get(0);
+        }
+        if (positional.size() > 1) {
+            outputPath = positional.get(1);
+        }
+
+        boolean optimizeForSize = level.equals("-Os");
+        PassManager passManager = new PassManager();
+        passManager.setVerify(verify);
+        passManager.addPipeline(pipeline != null ? pipeline : PassManager.preset(level));
+        if (superoptCache != null) {
+            passManager.setSuperoptCache(superoptCache);
+            passManager.addPipeline("superopt");
+        }
+        CostModel costModel = new CostModel(target);
+        passManager.setCostModel(costModel);
+        if (target.getLimit() != null) {
+            passManager.addPipeline("fit");
+        }
+
+        if (watch && incremental == null) {
+            if (stream || instrumentPath != null || objectPath != null || profile != null) {
+                throw new RuntimeException("--watch can't be combined with --stream, --instrument, --emit-object or --profile");
+            }
+            watch(args, inputPath);
+            return;
+        }
+
+        CompileStats stats = new CompileStats(inputPath);
+
+        if (stream) {
+            if (instrumentPath != null || objectPath != null) {
+                throw new RuntimeException("--stream can't be combined with --instrument or --emit-object");
+            }
+
+            CompileVisitor visitor = new CompileVisitor();
+            visitor.setProfile(profile);
+            visitor.setIdleWait(idleWait);
+            visitor.setTarget(target);
+            for (ObjectFile object : objects) {
+                visitor.link(object);
+            }
+
+            CompileStats.Phase phase = stats.start("streaming", 0);
+            int count;
+            try (Reader in = new FileReader(inputPath); Writer out = new BufferedWriter(new FileWriter(outputPath))) {
+                count = new StreamingCompiler(visitor).compile(in, out);
+            }
+            phase.finish(count);
+            costModel.checkLimit(count);
+            stats.setSpills(visitor.getPushCount(), visitor.getPopCount());
+            stats.commit();
+            writeStats(stats, printStats, statsPath);
+            return;
+        }
+
+        CompileStats.Phase phase = stats.start("lexing", 0);
+        MinAsmLexer lexer = new MinAsmLexer(CharStreams.fromFileName(inputPath));
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        tokens.fill();
+        phase.finish(0);
 
-        MinAsmLexer lexer = new MinAsmLexer(CharStreams.fromFileName("src/main/java/input.txt"));
-        MinAsmParser parser = new MinAsmParser(new CommonTokenStream(lexer));
+        phase = stats.start("parsing", 0);
+        MinAsmParser parser = new MinAsmParser(tokens);
         ParseTree tree = parser.program();
+        phase.finish(0);
+        stats.setParseTreeSize(countNodes(tree));
+
+        phase = stats.start("compileVisitor", 0);
         CompileVisitor visitor = new CompileVisitor();
+        visitor.setProfile(profile);
+        visitor.setBlockLabels(instrumentPath != null);
+        visitor.setOptimizeForSize(optimizeForSize);
+        visitor.setIdleWait(idleWait);
+        visitor.setJobs(jobs);
+        visitor.setIncremental(incremental);
+        visitor.setTarget(target);
+        for (ObjectFile object : objects) {
+            visitor.link(object);
+        }
         List<String> instructions = visitor.visit(tree);
+        phase.finish(instructions.size());
+        stats.setSpills(visitor.getPushCount(), visitor.getPopCount());
+
+        if (objectPath != null) {
+            new ObjectFile(visitor.getDeclaredFunctions()).write(objectPath);
+            return;
+        }
+
+        passManager.setStableSensors(visitor.getStableSensors());
+        int before = SizeOptimizer.size(instructions);
+        instructions = passManager.run(instructions, stats);
+        if (optimizeForSize) {
+            // the compiler already made some functions subroutines, which before doesn't count as saved
+            int subroutines = visitor.getSubroutineCount();
+            System.err.printf("size: %d -> %d instructions in the size passes (%d subroutine%s made by the compiler before them)%n",
+                    before, SizeOptimizer.size(instructions), subroutines, subroutines == 1 ? "" : "s");
+        }
+
+        if (printCost || budget != null) {
+            phase = stats.start("costAnalyzer", instructions.size());
+            List<CostAnalyzer.Cost> loops = CostAnalyzer.analyzeLoops(instructions);
+            if (printCost) {
+                for (var function : visitor.getDeclaredFunctions().entrySet()) {
+                    System.err.println(CostAnalyzer.analyzeFunction(function.getKey(), function.getValue()));
+                }
+                for (CostAnalyzer.Cost loop : loops) {
+                    System.err.println(loop);
+                }
+                CostAnalyzer.Cost program = CostAnalyzer.analyzeProgram(instructions);
+                System.err.println(program);
+                System.err.printf("%s processor: worst path %.2f ticks%n", target.getProcessor(), costModel.ticks(program.getWorstPath()));
+            }
+            phase.finish(instructions.size());
+            if (budget != null) {
+                CostAnalyzer.checkBudget(loops, budget);
+            }
+        }
+
+        if (instrumentPath != null) {
+            phase = stats.start("profiler", instructions.size());
+            Profiler.checkBank(instrumentBank, target, visitor.getBankUsage());
+            Profiler profiler = new Profiler(instrumentBank);
+            instructions = profiler.instrument(instructions);
+            Files.write(Path.of(instrumentPath), profiler.getBlockKeys());
+            phase.finish(instructions.size());
+        }
+
+        costModel.checkLimit(SizeOptimizer.size(instructions));
 
-        instructions = LabelFixer.fixLabels(instructions);
+        phase = stats.start("labelFixer", instructions.size());
+        instructions = incremental == null ? LabelFixer.fixLabels(instructions) : incremental.fixLabels(instructions);
+        phase.finish(instructions.size());
 
+        phase = stats.start("output", instructions.size());
+        File outFile = new File(outputPath);
+        FileWriter fout = new FileWriter(outFile);
+        BufferedWriter bw = new BufferedWriter(fout);
+
+        // one write each, since the console flushes every line it's given
+        StringBuilder text = new StringBuilder();
         for (String i : instructions) {
-            System.out.println(i);
-            bw.write(i + "\n");
+            text.append(i).append('\n');
         }
+        System.out.print(text);
+        System.out.flush();
+        bw.write(text.toString());
 
         bw.close();
+        phase.finish(instructions.size());
+
+        stats.commit();
+        writeStats(stats, printStats, statsPath);
+    }
+
+    private static void watch(String[] args, String inputPath) throws Exception {
+        Path input = Path.of(inputPath);
+        IncrementalCompiler incremental = new IncrementalCompiler();
+        while (true) {
+            FileTime modified = Files.getLastModifiedTime(input);
+            incremental.reset();
+            long start = System.nanoTime();
+            try {
+                compile(args, incremental);
+                System.err.printf("compiled %s in %d ms: %d chunks reused, %d compiled%n", inputPath,
+                        (System.nanoTime() - start) / 1000000, incremental.getReused(), incremental.getCompiled());
+            } catch (RuntimeException | IOException e) {
+                System.err.println("error: " + e.getMessage());
+            }
+
+            // an editor saving by renaming a new file over the old one leaves a moment with no file at all
+            while (true) {
+                Thread.sleep(WATCH_POLL_MILLIS);
+                try {
+                    if (!Files.getLastModifiedTime(input).equals(modified)) {
+                        break;
+                    }
+                } catch (NoSuchFileException e) {
+                    // not saved yet
+                }
+            }
+        }
+    }
+
+    private static void writeStats(CompileStats stats, boolean printStats, String statsPath) throws IOException {
+        if (printStats) {
+            if (statsPath == null) {
+                System.err.print(stats.toJson());
+            } else {
+                PrintStream out = new PrintStream(statsPath);
+                out.print(stats.toJson());
+                out.close();
+            }
+        }
     }
 }
@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// functions compiled once to label form, relocated into each program that links and calls them
+public class ObjectFile {
+    private static final String SYMBOL = "symbol ";
+    private static final String EXTERN = "extern ";
+    private static final String INDENT = "    ";
+
+    private final Map<String, List<String>> symbols;
+
+    public ObjectFile(Map<String, List<String>> symbols) {
+        this.symbols = new LinkedHashMap<>(symbols);
+    }
+
+    public Map<String, List<String>> getSymbols() {
+        return symbols;
+    }
+
+    public Set<String> getExterns() {
+        Set<String> externs = new LinkedHashSet<>();
+        for (List<String> body : symbols.values()) {
+            externs.addAll(LabelFixer.unresolvedLabels(body));
+        }
+        return externs;
+    }
+
+    public List<String> serialize() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, List<String>> symbol : symbols.entrySet()) {
+            lines.add(SYMBOL + symbol.getKey());
+            for (String instruction : symbol.getValue()) {
+                lines.add(INDENT + instruction);
+            }
+        }
+        for (String extern : getExterns()) {
+            lines.add(EXTERN + extern);
+        }
+        return lines;
+    }
+
+    public static ObjectFile deserialize(List<String> lines) {
+        Map<String, List<String>> symbols = new LinkedHashMap<>();
+        List<String> body = null;
+
+        for (String line : lines) {
+            if (line.startsWith(SYMBOL)) {
+                body = new ArrayList<>();
+                symbols.put(line.substring(SYMBOL.length()), body);
+            } else if (line.startsWith(INDENT)) {
+                if (body == null) {
+                    throw new RuntimeException("instruction outside of a symbol: " + line);
+                }
+                body.add(line.substring(INDENT.length()));
+            } else if (!line.startsWith(EXTERN) && !line.isBlank()) {
+                throw new RuntimeException("invalid object line: " + line);
+            }
+        }
+
+        return new ObjectFile(symbols);
+    }
+
+    public void write(String path) throws IOException {
+        Files.write(Path.of(path), serialize());
+    }
+
+    public static ObjectFile read(String path) throws IOException {
+        return deserialize(Files.readAllLines(Path.of(path)));
+    }
+}
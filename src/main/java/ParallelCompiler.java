@@ -0,0 +1,136 @@
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// splits a program into chunks that compile on their own; each chunk numbers its labels in its own
+// namespace, and renumbering them once every chunk's count is known gives the serial numbering
+public class ParallelCompiler {
+    public static final int REGION_SIZE = 16;
+    // can't appear in a label the source names
+    private static final char MARK = '\u0001';
+
+    public static String placeholder(int namespace, int uid) {
+        return MARK + Integer.toString(namespace) + ':' + uid + MARK;
+    }
+
+    // uid n of namespace i becomes bases[i] + n; only labels and jumps carry them
+    public static List<String> renumber(List<String> instructions, int[] bases) {
+        List<String> processedInstructions = new ArrayList<>(instructions.size());
+        for (String instruction : instructions) {
+            int start = instruction.indexOf(MARK);
+            if (start < 0 || !(instruction.startsWith("label ") || instruction.startsWith("jump "))) {
+                processedInstructions.add(instruction);
+                continue;
+            }
+
+            StringBuilder renumbered = new StringBuilder(instruction.length());
+            int end = -1;
+            while (start >= 0) {
+                renumbered.append(instruction, end + 1, start);
+                int colon = instruction.indexOf(':', start);
+                end = instruction.indexOf(MARK, colon);
+                int namespace = Integer.parseInt(instruction.substring(start + 1, colon));
+                renumbered.append(bases[namespace] + Integer.parseInt(instruction.substring(colon + 1, end)));
+                start = instruction.indexOf(MARK, end + 1);
+            }
+            renumbered.append(instruction, end + 1, instruction.length());
+            processedInstructions.add(renumbered.toString());
+        }
+        return processedInstructions;
+    }
+
+    // each function declaration gets a chunk of its own and other statements are grouped up to REGION_SIZE;
+    // a chunk never starts right after a print, which may share its flush with what follows
+    public static List<List<MinAsmParser.StmtContext>> partition(List<MinAsmParser.StmtContext> stmts) {
+        List<List<MinAsmParser.StmtContext>> chunks = new ArrayList<>();
+        List<MinAsmParser.StmtContext> chunk = new ArrayList<>();
+
+        for (MinAsmParser.StmtContext stmt : stmts) {
+            if (!chunk.isEmpty()) {
+                MinAsmParser.StmtContext last = chunk.get(chunk.size() - 1);
+                boolean split = stmt.function() != null || last.function() != null || chunk.size() >= REGION_SIZE;
+                if (split && last.print() == null) {
+                    chunks.add(chunk);
+                    chunk = new ArrayList<>();
+                }
+            }
+            chunk.add(stmt);
+        }
+
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static boolean isDeclaration(ParseTree tree) {
+        return tree instanceof MinAsmParser.FunctionContext
+                || tree instanceof MinAsmParser.ChannelContext
+                || tree instanceof MinAsmParser.StableContext
+                || tree instanceof MinAsmParser.TaskContext;
+    }
+
+    private static boolean hasNestedDeclaration(ParseTree tree) {
+        if (isDeclaration(tree) && !(tree.getParent().getParent() instanceof MinAsmParser.ProgramContext)) {
+            return true;
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            if (hasNestedDeclaration(tree.getChild(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // declarations are only ordered between chunks when they all sit at the top level
+    public static boolean canPartition(MinAsmParser.ProgramContext ctx) {
+        return !hasNestedDeclaration(ctx);
+    }
+
+    private static void addCalledNames(ParseTree tree, Set<String> names) {
+        if (tree instanceof MinAsmParser.FuncCallExprContext) {
+            names.add(((MinAsmParser.FuncCallExprContext) tree).ID().getText());
+        }
+        for (int i = 0; i < tree.getChildCount(); i++) {
+            addCalledNames(tree.getChild(i), names);
+        }
+    }
+
+    public static Set<String> calledNames(List<MinAsmParser.StmtContext> chunk) {
+        Set<String> names = new LinkedHashSet<>();
+        for (MinAsmParser.StmtContext stmt : chunk) {
+            addCalledNames(stmt, names);
+        }
+        return names;
+    }
+
+    // the source of a chunk as written; the text of its tree drops the spaces that tell return a; from returna;
+    public static String sourceText(List<MinAsmParser.StmtContext> chunk) {
+        Token start = chunk.get(0).getStart();
+        Token stop = chunk.get(chunk.size() - 1).getStop();
+        return start.getInputStream().getText(Interval.of(start.getStartIndex(), stop.getStopIndex()));
+    }
+
+    public static Set<String> declaredNames(List<MinAsmParser.StmtContext> chunk) {
+        Set<String> names = new LinkedHashSet<>();
+        for (MinAsmParser.StmtContext stmt : chunk) {
+            if (stmt.function() != null) {
+                names.add(stmt.function().ID(0).getText());
+            }
+        }
+        return names;
+    }
+
+    // a task failing on another thread is rethrown as a copy wrapping the original, which has the message
+    public static RuntimeException unwrap(RuntimeException e) {
+        while (e.getCause() instanceof RuntimeException && e.getCause().getClass() == e.getClass()) {
+            e = (RuntimeException) e.getCause();
+        }
+        return e;
+    }
+}
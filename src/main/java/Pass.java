@@ -0,0 +1,9 @@
+import java.io.IOException;
+import java.util.List;
+
+// a transformation of label form instructions that the pass manager can schedule
+public interface Pass {
+    String getName();
+
+    List<String> run(List<String> instructions) throws IOException;
+}
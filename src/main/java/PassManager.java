@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+// runs a pipeline of passes, repeating the ones marked with * until they stop changing the code
+public class PassManager {
+    private static final int MAX_ITERATIONS = 16;
+
+    private static class Step {
+        private final Pass pass;
+        private final boolean fixpoint;
+
+        private Step(Pass pass, boolean fixpoint) {
+            this.pass = pass;
+            this.fixpoint = fixpoint;
+        }
+    }
+
+    private final List<Step> steps = new ArrayList<>();
+    private String superoptCache = Superoptimizer.DEFAULT_CACHE;
+    private boolean verify = true;
+    private Set<String> stableSensors = new HashSet<>();
+    private CostModel costModel = new CostModel(TargetProfile.defaults());
+
+    // the pipeline each optimization level stands for
+    public static String preset(String level) {
+        switch (level) {
+            case "-O0":
+                return "";
+            case "-O1":
+                return "draw";
+            case "-O2":
+                return "draw,licm,tails*";
+            case "-Os":
+                return "draw,licm,tails*,outline";
+            default:
+                throw new RuntimeException("unknown optimization level: " + level);
+        }
+    }
+
+    public static boolean isPreset(String arg) {
+        return arg.equals("-O0") || arg.equals("-O1") || arg.equals("-O2") || arg.equals("-Os");
+    }
+
+    public void setSuperoptCache(String superoptCache) {
+        this.superoptCache = superoptCache;
+    }
+
+    public void setStableSensors(Set<String> stableSensors) {
+        this.stableSensors = stableSensors;
+    }
+
+    public void setCostModel(CostModel costModel) {
+        this.costModel = costModel;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    private static Pass pass(String name, UnaryOperator<List<String>> run) {
+        return new Pass() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public List<String> run(List<String> instructions) {
+                return run.apply(instructions);
+            }
+        };
+    }
+
+    private Pass superoptPass() {
+        return new Pass() {
+            @Override
+            public String getName() {
+                return "superopt";
+            }
+
+            @Override
+            public List<String> run(List<String> instructions) throws IOException {
+                return new Superoptimizer(Path.of(superoptCache), Superoptimizer.DEFAULT_MAX_LENGTH).optimize(instructions);
+            }
+        };
+    }
+
+    private Pass namedPass(String name) {
+        switch (name) {
+            case "draw":
+                return pass(name, instructions -> DrawOptimizer.optimize(instructions, costModel.getTarget().getDisplay()));
+            case "drawState":
+                return pass(name, DrawOptimizer::removeRedundantState);
+            case "drawFlush":
+                return pass(name, instructions -> DrawOptimizer.insertFlushes(instructions, costModel.getTarget().getDisplay()));
+            case "tails":
+                return pass(name, SizeOptimizer::mergeTails);
+            case "outline":
+                return pass(name, SizeOptimizer::outline);
+            case "licm":
+                return pass(name, instructions -> LoopOptimizer.hoistInvariants(instructions, stableSensors));
+            case "fit":
+                return pass(name, instructions -> costModel.fit(instructions));
+            case "superopt":
+                return superoptPass();
+            default:
+                throw new RuntimeException("unknown pass: " + name);
+        }
+    }
+
+    public void add(Pass pass, boolean fixpoint) {
+        steps.add(new Step(pass, fixpoint));
+    }
+
+    // adds passes from a comma separated pipeline such as "draw,tails*"
+    public void addPipeline(String pipeline) {
+        for (String name : pipeline.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+
+            boolean fixpoint = name.endsWith("*");
+            if (fixpoint) {
+                name = name.substring(0, name.length() - 1);
+            }
+            add(namedPass(name), fixpoint);
+        }
+    }
+
+    public List<String> getPassNames() {
+        List<String> names = new ArrayList<>();
+        for (Step step : steps) {
+            names.add(step.pass.getName() + (step.fixpoint ? "*" : ""));
+        }
+        return names;
+    }
+
+    public List<String> run(List<String> instructions, CompileStats stats) throws IOException {
+        if (verify) {
+            Verifier.verify(instructions, "compileVisitor");
+        }
+
+        for (Step step : steps) {
+            CompileStats.Phase phase = stats.start(step.pass.getName(), instructions.size());
+
+            int iterations = 0;
+            List<String> previous;
+            do {
+                previous = instructions;
+                instructions = step.pass.run(instructions);
+                iterations++;
+            } while (step.fixpoint && iterations < MAX_ITERATIONS && !instructions.equals(previous));
+
+            phase.finish(instructions.size());
+
+            if (verify) {
+                Verifier.verify(instructions, step.pass.getName());
+            }
+        }
+
+        return instructions;
+    }
+}
@@ -0,0 +1,34 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Profile {
+    private final Map<String, Long> counts;
+
+    public Profile(Map<String, Long> counts) {
+        this.counts = counts;
+    }
+
+    // pairs the block keys written by an instrumented build with the counters dumped from its bank
+    public static Profile load(String blocksPath, String countsPath) throws IOException {
+        List<String> keys = Files.readAllLines(Path.of(blocksPath));
+        List<String> values = Files.readAllLines(Path.of(countsPath));
+        Map<String, Long> counts = new HashMap<>();
+
+        for (int i = 0; i < keys.size() && i < values.size(); i++) {
+            String value = values.get(i).trim();
+            if (!value.isEmpty()) {
+                counts.put(keys.get(i), (long) Double.parseDouble(value));
+            }
+        }
+
+        return new Profile(counts);
+    }
+
+    public long count(String key) {
+        return counts.getOrDefault(key, 0L);
+    }
+}
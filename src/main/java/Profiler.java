@@ -0,0 +1,76 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class Profiler {
+    public static final String DEFAULT_BANK = "bank2";
+    private static final String COUNTER = "pcnt";
+
+    private final String bank;
+    private final List<String> blockKeys = new ArrayList<>();
+
+    public Profiler(String bank) {
+        this.bank = bank;
+    }
+
+    // throws if the program keeps something in bank, which the counters would overwrite: the stack of
+    // the target, or the channels and lookup tables declared with the cells they use in bankUsage
+    public static void checkBank(String bank, TargetProfile target, Map<String, Integer> bankUsage) {
+        if (bank.equals(target.getBank())) {
+            throw new RuntimeException(String.format("profile counters can't use %s, which holds the stack", bank));
+        }
+        if (bankUsage.containsKey(bank)) {
+            throw new RuntimeException(String.format("profile counters can't use %s, which holds channels or lookup tables", bank));
+        }
+    }
+
+    // keys are the block's first label, or the nearest labeled block before it with a suffix
+    public static List<String> blockKeys(ControlFlowGraph graph) {
+        List<String> keys = new ArrayList<>();
+        String lastKey = ".entry";
+        int unlabeled = 0;
+
+        for (ControlFlowGraph.Block block : graph.getBlocks()) {
+            if (!block.getLabels().isEmpty()) {
+                lastKey = block.getLabels().get(0);
+                unlabeled = 0;
+                keys.add(lastKey);
+            } else if (block.getIndex() == 0) {
+                keys.add(lastKey);
+            } else {
+                unlabeled++;
+                keys.add(lastKey + "+" + unlabeled);
+            }
+        }
+
+        return keys;
+    }
+
+    // adds a counter in the bank to every basic block, indexed in the order of getBlockKeys
+    public List<String> instrument(List<String> instructions) {
+        ControlFlowGraph graph = new ControlFlowGraph(instructions);
+        List<String> keys = blockKeys(graph);
+
+        if (keys.size() > TargetProfile.capacity(bank)) {
+            throw new RuntimeException(String.format("too many blocks to profile: %d", keys.size()));
+        }
+
+        List<String> processedInstructions = new ArrayList<>();
+        for (ControlFlowGraph.Block block : graph.getBlocks()) {
+            int bodyStart = block.getStart() + block.getLabels().size();
+            processedInstructions.addAll(instructions.subList(block.getStart(), bodyStart));
+            processedInstructions.add(String.format("read %s %s %d", COUNTER, bank, block.getIndex()));
+            processedInstructions.add(String.format("op add %s %s 1", COUNTER, COUNTER));
+            processedInstructions.add(String.format("write %s %s %d", COUNTER, bank, block.getIndex()));
+            processedInstructions.addAll(instructions.subList(bodyStart, block.getEnd()));
+        }
+
+        blockKeys.clear();
+        blockKeys.addAll(keys);
+        return processedInstructions;
+    }
+
+    public List<String> getBlockKeys() {
+        return blockKeys;
+    }
+}
@@ -0,0 +1,267 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SizeOptimizer {
+    public static final String RETURN_ADDRESS = "retAddr";
+    private static final int MIN_OUTLINE = 3;
+    private static final int MAX_OUTLINE = 32;
+    private static final String OUTLINE_PREFIX = ".outLbl";
+    private static final long HASH_BASE = 1000003;
+
+    public static List<String> optimize(List<String> instructions) {
+        return outline(mergeTails(instructions));
+    }
+
+    public static int size(List<String> instructions) {
+        int size = 0;
+        for (String instruction : instructions) {
+            if (LabelFixer.labelName(instruction) == null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private static boolean writesCounter(Instruction i) {
+        List<String> writes = i.getWrites();
+        return writes == null || writes.contains("@counter");
+    }
+
+    // instructions that depend on their own address, like saving a return address, can't be moved or shared
+    private static boolean isStraight(String instruction) {
+        Instruction i = Instruction.parse(instruction);
+        return !i.isLabel() && !i.isJump() && !i.getOpcode().equals("end") && !writesCounter(i)
+                && !instruction.contains("@counter");
+    }
+
+    private static boolean isFallThrough(String instruction) {
+        Instruction i = Instruction.parse(instruction);
+        return !i.getOpcode().equals("end") && !(i.isJump() && i.arg(1).equals("always")) && !writesCounter(i);
+    }
+
+    // when the code before a forward jump matches the code falling into its label, keeps one copy
+    public static List<String> mergeTails(List<String> instructions) {
+        List<String> processedInstructions = new ArrayList<>(instructions);
+        int tailCounter = 0;
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            Map<String, Integer> labels = new HashMap<>();
+            for (int line = 0; line < processedInstructions.size(); line++) {
+                String labelName = LabelFixer.labelName(processedInstructions.get(line));
+                if (labelName != null) {
+                    labels.put(labelName, line);
+                }
+            }
+
+            for (int jump = 0; jump < processedInstructions.size() && !changed; jump++) {
+                Instruction instruction = Instruction.parse(processedInstructions.get(jump));
+                Integer label = labels.get(instruction.arg(0));
+                if (!instruction.isJump() || !instruction.arg(1).equals("always") || label == null || label <= jump
+                        || label == 0 || !isFallThrough(processedInstructions.get(label - 1))) {
+                    continue;
+                }
+
+                int tail = 0;
+                while (jump - tail - 1 >= 0 && label - tail - 1 > jump
+                        && isStraight(processedInstructions.get(jump - tail - 1))
+                        && processedInstructions.get(jump - tail - 1).equals(processedInstructions.get(label - tail - 1))) {
+                    tail++;
+                }
+
+                if (tail > 0) {
+                    String tailLabel = ".tailLbl" + tailCounter++;
+                    processedInstructions.add(label - tail, "label " + tailLabel);
+                    processedInstructions.set(jump, "jump " + tailLabel + " always null null");
+                    processedInstructions.subList(jump - tail, jump).clear();
+                    changed = true;
+                }
+            }
+        }
+
+        return processedInstructions;
+    }
+
+    private static boolean isOutlinable(String instruction) {
+        return isStraight(instruction) && !instruction.contains(RETURN_ADDRESS);
+    }
+
+    // moves repeated straight-line sequences into subroutines after the program, called through @counter
+    public static List<String> outline(List<String> instructions) {
+        return outline(instructions, 0);
+    }
+
+    private static boolean isSubroutineLabel(String labelName) {
+        return labelName != null && (labelName.startsWith(".funcLbl") || labelName.startsWith(OUTLINE_PREFIX));
+    }
+
+    // lines of the function and outlined subroutines after the program; code there runs with retAddr
+    // holding its caller's address, so calling out again would lose it
+    private static boolean[] subroutineLines(List<String> program) {
+        boolean[] lines = new boolean[program.size()];
+        boolean inSubroutine = false;
+        for (int line = 0; line < program.size(); line++) {
+            inSubroutine |= isSubroutineLabel(LabelFixer.labelName(program.get(line)));
+            lines[line] = inSubroutine;
+            if (program.get(line).equals("set @counter " + RETURN_ADDRESS)) {
+                inSubroutine = false;
+            }
+        }
+        return lines;
+    }
+
+    // the first outline label number not already taken by an earlier outline of the program
+    private static int nextOutline(List<String> program) {
+        int next = 0;
+        for (String instruction : program) {
+            String labelName = LabelFixer.labelName(instruction);
+            if (labelName != null && labelName.startsWith(OUTLINE_PREFIX)) {
+                try {
+                    next = Math.max(next, Integer.parseInt(labelName.substring(OUTLINE_PREFIX.length())) + 1);
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        return next;
+    }
+
+    private static boolean needsEnd(List<String> program, List<String> subroutines) {
+        if (subroutines.isEmpty() || program.isEmpty()) {
+            return !subroutines.isEmpty();
+        }
+        // the program can already end with a function returning to its caller
+        String last = program.get(program.size() - 1);
+        return !last.equals("end") && !last.equals("set @counter " + RETURN_ADDRESS);
+    }
+
+    // outlines the sequences saving the most first, stopping once the program takes at most limit instructions;
+    // sequences are found by a rolling hash over instruction ids, since every round looks at every length
+    public static List<String> outline(List<String> instructions, int limit) {
+        List<String> program = new ArrayList<>(instructions);
+        List<String> subroutines = new ArrayList<>();
+        int outlineCounter = nextOutline(program);
+
+        // the id of each line's instruction and whether the line can be outlined, kept in step with program
+        Map<String, Integer> ids = new HashMap<>();
+        List<Integer> lineIds = new ArrayList<>(program.size());
+        List<Boolean> movable = new ArrayList<>(program.size());
+        boolean[] inSubroutine = subroutineLines(program);
+        for (int line = 0; line < program.size(); line++) {
+            lineIds.add(ids.computeIfAbsent(program.get(line), k -> ids.size()));
+            movable.add(!inSubroutine[line] && isOutlinable(program.get(line)));
+        }
+        int programSize = size(program);
+        int subroutineSize = 0;
+
+        long[] powers = new long[MAX_OUTLINE + 1];
+        powers[0] = 1;
+        for (int i = 1; i <= MAX_OUTLINE; i++) {
+            powers[i] = powers[i - 1] * HASH_BASE;
+        }
+
+        while (programSize + subroutineSize + (needsEnd(program, subroutines) ? 1 : 0) > limit) {
+            List<String> best = null;
+            List<Integer> bestStarts = null;
+            int bestSavings = 0;
+
+            // the straight run ending at each line, and the hash of the ids before it
+            int[] id = new int[program.size()];
+            int[] straight = new int[program.size()];
+            long[] prefix = new long[program.size() + 1];
+            for (int line = 0; line < program.size(); line++) {
+                id[line] = lineIds.get(line);
+                straight[line] = movable.get(line) ? (line > 0 ? straight[line - 1] : 0) + 1 : 0;
+                prefix[line + 1] = prefix[line] * HASH_BASE + id[line];
+            }
+
+            // a sequence only repeats if the one a line shorter does, so lengths go up from the shortest, and
+            // the longer of two sequences saving as much wins
+            List<Integer> candidates = null;
+            for (int length = MIN_OUTLINE; length <= MAX_OUTLINE; length++) {
+                // keyed by hash, moving on to the next key when a different sequence has it
+                Map<Long, List<Integer>> occurrences = new LinkedHashMap<>();
+                List<Integer> visited = new ArrayList<>();
+                List<List<Integer>> visitedOccurrences = new ArrayList<>();
+                int count = candidates == null ? Math.max(0, program.size() - length + 1) : candidates.size();
+                for (int i = 0; i < count; i++) {
+                    int start = candidates == null ? i : candidates.get(i);
+                    int line = start + length - 1;
+                    if (line >= program.size() || straight[line] < length) {
+                        continue;
+                    }
+                    long hash = prefix[line + 1] - prefix[start] * powers[length];
+                    List<Integer> starts = occurrences.get(hash);
+                    while (starts != null && !Arrays.equals(id, starts.get(0), starts.get(0) + length, id, start, line + 1)) {
+                        starts = occurrences.get(++hash);
+                    }
+                    if (starts == null) {
+                        starts = new ArrayList<>();
+                        occurrences.put(hash, starts);
+                    }
+                    if (starts.isEmpty() || starts.get(starts.size() - 1) + length <= start) {
+                        starts.add(start);
+                    }
+                    visited.add(start);
+                    visitedOccurrences.add(starts);
+                }
+
+                for (List<Integer> starts : occurrences.values()) {
+                    int savings = CostModel.subroutineSavings(starts.size(), length);
+                    if (savings > bestSavings || savings == bestSavings && best != null && length > best.size()) {
+                        best = new ArrayList<>(program.subList(starts.get(0), starts.get(0) + length));
+                        bestStarts = starts;
+                        bestSavings = savings;
+                    }
+                }
+
+                candidates = new ArrayList<>();
+                for (int i = 0; i < visited.size(); i++) {
+                    if (visitedOccurrences.get(i).size() > 1) {
+                        candidates.add(visited.get(i));
+                    }
+                }
+                if (candidates.isEmpty()) {
+                    break;
+                }
+            }
+
+            if (best == null) {
+                break;
+            }
+
+            String outlineLabel = OUTLINE_PREFIX + outlineCounter++;
+            List<String> call = List.of(
+                    String.format("op add %s @counter 1", RETURN_ADDRESS),
+                    "jump " + outlineLabel + " always null null");
+            List<Integer> callIds = List.of(ids.computeIfAbsent(call.get(0), k -> ids.size()),
+                    ids.computeIfAbsent(call.get(1), k -> ids.size()));
+            for (int i = bestStarts.size() - 1; i >= 0; i--) {
+                int start = bestStarts.get(i);
+                program.subList(start, start + best.size()).clear();
+                program.addAll(start, call);
+                lineIds.subList(start, start + best.size()).clear();
+                lineIds.addAll(start, callIds);
+                movable.subList(start, start + best.size()).clear();
+                movable.addAll(start, List.of(false, false));
+            }
+            programSize -= bestStarts.size() * (best.size() - call.size());
+
+            subroutines.add("label " + outlineLabel);
+            subroutines.addAll(best);
+            subroutines.add(String.format("set @counter %s", RETURN_ADDRESS));
+            subroutineSize += best.size() + 1;
+        }
+
+        if (needsEnd(program, subroutines)) {
+            program.add("end");
+        }
+        program.addAll(subroutines);
+        return program;
+    }
+}
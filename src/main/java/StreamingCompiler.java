@@ -0,0 +1,86 @@
+import org.antlr.v4.runtime.CommonTokenFactory;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.UnbufferedCharStream;
+import org.antlr.v4.runtime.UnbufferedTokenStream;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// compiles one top level statement at a time, so memory scales with the largest statement
+// rather than the whole program; jumps are fixed in a second pass over a spill file once
+// every label address is known
+public class StreamingCompiler {
+    private final CompileVisitor visitor;
+    private final Map<String, Integer> labels = new HashMap<>();
+    // the draw state the statements so far leave, so a later one can drop what an earlier one set
+    private final Map<String, Instruction> drawState = new HashMap<>();
+    private int line = 0;
+
+    public StreamingCompiler(CompileVisitor visitor) {
+        this.visitor = visitor;
+    }
+
+    private void emit(List<String> instructions, Writer pending) throws IOException {
+        for (String instruction : DrawOptimizer.removeRedundantState(instructions, drawState)) {
+            String labelName = LabelFixer.labelName(instruction);
+            if (labelName != null) {
+                labels.put(labelName, line);
+            } else {
+                pending.write(instruction);
+                pending.write("\n");
+                line++;
+            }
+        }
+    }
+
+    // returns the number of instructions written
+    public int compile(Reader input, Writer output) throws IOException {
+        MinAsmLexer lexer = new MinAsmLexer(new UnbufferedCharStream(input));
+        lexer.setTokenFactory(new CommonTokenFactory(true));
+        TokenStream tokens = new UnbufferedTokenStream<>(lexer);
+        MinAsmParser parser = new MinAsmParser(tokens);
+
+        Path spill = Files.createTempFile("minasm", ".lbl");
+        try {
+            try (BufferedWriter pending = Files.newBufferedWriter(spill)) {
+                emit(visitor.prologue(), pending);
+
+                // runs of prints are held back so they still share one flush
+                List<MinAsmParser.StmtContext> statements = new ArrayList<>();
+                while (tokens.LA(1) != Token.EOF) {
+                    MinAsmParser.StmtContext stmt = parser.stmt();
+                    statements.add(stmt);
+                    if (stmt.print() == null) {
+                        emit(visitor.visitStatements(statements), pending);
+                        statements.clear();
+                    }
+                }
+                emit(visitor.visitStatements(statements), pending);
+
+                emit(visitor.epilogue(), pending);
+            }
+
+            try (BufferedReader pending = Files.newBufferedReader(spill)) {
+                String instruction;
+                while ((instruction = pending.readLine()) != null) {
+                    output.write(LabelFixer.fixJump(instruction, labels));
+                    output.write("\n");
+                }
+            }
+        } finally {
+            Files.delete(spill);
+        }
+
+        return line;
+    }
+}
@@ -0,0 +1,527 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+// searches for the shortest op/set sequence equivalent to each straight-line window inside a loop;
+// candidates must match on edge-case, null and random inputs as mlog computes them, in doubles, and
+// then as polynomials over the window inputs
+public class Superoptimizer {
+    public static final String DEFAULT_CACHE = ".minasm-superopt";
+    public static final int DEFAULT_MAX_LENGTH = 2;
+    private static final int MAX_WINDOW = 6;
+    private static final List<String> OPS = Arrays.asList("add", "sub", "mul", "div", "mod");
+    // 3 next to 1e16 makes (a + b) - b round away from a
+    private static final double[] EDGE_VALUES = {0, 1, -1, 2, -2, 0.5, 3, 1e16, 0.1, 1000, -1e6, 1e300};
+    private static final int RANDOM_INPUTS = 8;
+    // candidates tried for one window before it's left as it is
+    private static final int SEARCH_BUDGET = 200000;
+    private static final String NO_REWRITE = "-";
+    // first line of the cache; files from a version that checked candidates differently are ignored
+    private static final String CACHE_VERSION = "# minasm superopt 2";
+
+    private static class Step {
+        private final String dest;
+        private final String op;
+        private final String a;
+        private final String b;
+
+        private Step(String dest, String op, String a, String b) {
+            this.dest = dest;
+            this.op = op;
+            this.a = a;
+            this.b = b;
+        }
+
+        private static Step of(Instruction instruction) {
+            if (instruction.getOpcode().equals("set")) {
+                return new Step(instruction.arg(0), "set", instruction.arg(1), null);
+            }
+            return new Step(instruction.arg(1), instruction.arg(0), instruction.arg(2), instruction.arg(3));
+        }
+
+        private List<String> operands() {
+            return b == null ? Arrays.asList(a) : Arrays.asList(a, b);
+        }
+
+        @Override
+        public String toString() {
+            return op.equals("set") ? String.format("set %s %s", dest, a) : String.format("op %s %s %s %s", op, dest, a, b);
+        }
+    }
+
+    private final Path cacheFile;
+    private final int maxLength;
+    private final Map<String, String> cache = new LinkedHashMap<>();
+    private boolean cacheChanged = false;
+    private int budget;
+
+    // a null cacheFile keeps found rewrites in memory only
+    public Superoptimizer(Path cacheFile, int maxLength) throws IOException {
+        this.cacheFile = cacheFile;
+        this.maxLength = maxLength;
+
+        if (cacheFile != null && Files.exists(cacheFile)) {
+            List<String> lines = Files.readAllLines(cacheFile);
+            if (lines.isEmpty() || !lines.get(0).equals(CACHE_VERSION)) {
+                lines = new ArrayList<>();
+            }
+            for (String line : lines) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    cache.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        }
+    }
+
+    private static boolean isNumber(String token) {
+        try {
+            Double.parseDouble(token);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean isCandidate(Instruction instruction) {
+        List<String> operands;
+        if (instruction.getOpcode().equals("set")) {
+            operands = Arrays.asList(instruction.arg(0), instruction.arg(1));
+        } else if (instruction.getOpcode().equals("op") && OPS.contains(instruction.arg(0))) {
+            operands = Arrays.asList(instruction.arg(1), instruction.arg(2), instruction.arg(3));
+        } else {
+            return false;
+        }
+
+        if (!Instruction.isVariable(operands.get(0))) {
+            return false;
+        }
+        for (String operand : operands) {
+            if (!Instruction.isVariable(operand) && !isNumber(operand)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean[] loopInstructions(List<String> instructions) {
+        Map<String, Integer> labels = new HashMap<>();
+        boolean[] inLoop = new boolean[instructions.size()];
+
+        for (int line = 0; line < instructions.size(); line++) {
+            Instruction instruction = Instruction.parse(instructions.get(line));
+            if (instruction.isLabel()) {
+                labels.put(instruction.arg(0), line);
+            } else if (instruction.isJump() && labels.containsKey(instruction.arg(0))) {
+                Arrays.fill(inLoop, labels.get(instruction.arg(0)) + 1, line, true);
+            }
+        }
+
+        return inLoop;
+    }
+
+    // whether the value of variable may still be read after the window
+    private static boolean isLive(String variable, List<String> rest) {
+        for (String line : rest) {
+            Instruction instruction = Instruction.parse(line);
+            List<String> reads = instruction.getReads();
+            List<String> writes = instruction.getWrites();
+            if (reads == null || writes == null || instruction.isLabel() || instruction.isJump()
+                    || instruction.getOpcode().equals("end") || reads.contains(variable)) {
+                return true;
+            }
+            if (writes.contains(variable)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public List<String> optimize(List<String> instructions) throws IOException {
+        boolean[] inLoop = loopInstructions(instructions);
+        List<String> processedInstructions = new ArrayList<>();
+
+        int line = 0;
+        while (line < instructions.size()) {
+            int end = line;
+            while (end < instructions.size() && end - line < MAX_WINDOW && inLoop[end]
+                    && isCandidate(Instruction.parse(instructions.get(end)))) {
+                end++;
+            }
+
+            if (end - line >= 2) {
+                processedInstructions.addAll(optimizeWindow(instructions.subList(line, end),
+                        instructions.subList(end, instructions.size())));
+                line = end;
+            } else {
+                processedInstructions.add(instructions.get(line));
+                line++;
+            }
+        }
+
+        saveCache();
+        return processedInstructions;
+    }
+
+    private String rename(String token, Map<String, String> names) {
+        return names.getOrDefault(token, token);
+    }
+
+    private Step rename(Step step, Map<String, String> names) {
+        return new Step(rename(step.dest, names), step.op, rename(step.a, names),
+                step.b == null ? null : rename(step.b, names));
+    }
+
+    private List<String> optimizeWindow(List<String> window, List<String> rest) {
+        Map<String, String> names = new LinkedHashMap<>();
+        List<Step> code = new ArrayList<>();
+        for (String line : window) {
+            Step step = Step.of(Instruction.parse(line));
+            for (String token : step.operands()) {
+                if (Instruction.isVariable(token)) {
+                    names.computeIfAbsent(token, k -> "v" + names.size());
+                }
+            }
+            names.computeIfAbsent(step.dest, k -> "v" + names.size());
+            code.add(step);
+        }
+
+        List<Step> canonical = new ArrayList<>();
+        Set<String> written = new LinkedHashSet<>();
+        for (Step step : code) {
+            canonical.add(rename(step, names));
+            written.add(step.dest);
+        }
+
+        List<String> liveOut = new ArrayList<>();
+        for (String variable : written) {
+            if (isLive(variable, rest)) {
+                liveOut.add(names.get(variable));
+            }
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (Step step : canonical) {
+            key.append(step).append(";");
+        }
+        key.append(String.join(",", liveOut));
+
+        String rewrite = cache.get(key.toString());
+        if (rewrite == null) {
+            List<Step> found = search(canonical, liveOut);
+            List<String> lines = new ArrayList<>();
+            if (found != null) {
+                for (Step step : found) {
+                    lines.add(step.toString());
+                }
+            }
+            rewrite = found == null ? NO_REWRITE : String.join(";", lines);
+            cache.put(key.toString(), rewrite);
+            cacheChanged = true;
+        }
+
+        if (rewrite.equals(NO_REWRITE)) {
+            return window;
+        }
+
+        Map<String, String> original = new HashMap<>();
+        for (Map.Entry<String, String> name : names.entrySet()) {
+            original.put(name.getValue(), name.getKey());
+        }
+
+        List<String> processedInstructions = new ArrayList<>();
+        for (String line : rewrite.isEmpty() ? new String[0] : rewrite.split(";")) {
+            processedInstructions.add(rename(Step.of(Instruction.parse(line)), original).toString());
+        }
+        return processedInstructions;
+    }
+
+    private List<Step> search(List<Step> code, List<String> liveOut) {
+        Set<String> inputs = new LinkedHashSet<>();
+        Set<String> dests = new LinkedHashSet<>();
+        Set<String> pool = new LinkedHashSet<>();
+        for (Step step : code) {
+            for (String token : step.operands()) {
+                if (Instruction.isVariable(token) && !dests.contains(token)) {
+                    inputs.add(token);
+                }
+            }
+            dests.add(step.dest);
+        }
+        pool.addAll(inputs);
+        pool.addAll(dests);
+        for (Step step : code) {
+            for (String token : step.operands()) {
+                if (!Instruction.isVariable(token)) {
+                    pool.add(token);
+                }
+            }
+        }
+        pool.add("0");
+        pool.add("1");
+
+        budget = SEARCH_BUDGET;
+        List<Map<String, Double>> vectors = testVectors(inputs, dests);
+        List<Map<String, Double>> expected = new ArrayList<>();
+        for (Map<String, Double> vector : vectors) {
+            expected.add(evaluate(code, vector));
+        }
+
+        List<Step> steps = new ArrayList<>();
+        for (String dest : dests) {
+            for (String a : pool) {
+                steps.add(new Step(dest, "set", a, null));
+            }
+            for (String op : OPS) {
+                for (String a : pool) {
+                    for (String b : pool) {
+                        steps.add(new Step(dest, op, a, b));
+                    }
+                }
+            }
+        }
+
+        Map<String, TreeMap<String, Double>> symbolic = symbolic(code, inputs);
+        for (int length = 0; length < code.size() && length <= maxLength; length++) {
+            List<Step> found = search(new ArrayList<>(), length, steps, vectors, expected, liveOut, inputs, symbolic);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    private List<Step> search(List<Step> candidate, int length, List<Step> steps, List<Map<String, Double>> vectors,
+                              List<Map<String, Double>> expected, List<String> liveOut, Set<String> inputs,
+                              Map<String, TreeMap<String, Double>> symbolic) {
+        if (candidate.size() == length) {
+            budget--;
+            for (int i = 0; i < vectors.size(); i++) {
+                Map<String, Double> actual = evaluate(candidate, vectors.get(i));
+                for (String variable : liveOut) {
+                    if (!Objects.equals(actual.get(variable), expected.get(i).get(variable))) {
+                        return null;
+                    }
+                }
+            }
+
+            Map<String, TreeMap<String, Double>> candidateSymbolic = symbolic(candidate, inputs);
+            for (String variable : liveOut) {
+                if (!symbol(variable, symbolic, inputs).equals(symbol(variable, candidateSymbolic, inputs))) {
+                    return null;
+                }
+            }
+            return new ArrayList<>(candidate);
+        }
+
+        for (Step step : steps) {
+            if (budget <= 0) {
+                return null;
+            }
+            candidate.add(step);
+            List<Step> found = search(candidate, length, steps, vectors, expected, liveOut, inputs, symbolic);
+            candidate.remove(candidate.size() - 1);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    // registers the window overwrites get unrelated values, so reading them before writing is caught; each
+    // input is also null once, which ops read as 0 but set copies, and random inputs of any size make
+    // rewrites that only hold for exact numbers round differently
+    private static List<Map<String, Double>> testVectors(Set<String> inputs, Set<String> dests) {
+        List<Map<String, Double>> vectors = new ArrayList<>();
+        Random random = new Random(0);
+
+        for (int t = 0; t < EDGE_VALUES.length + inputs.size() + 2 * RANDOM_INPUTS; t++) {
+            Map<String, Double> vector = new HashMap<>();
+            int i = 0;
+            for (String input : inputs) {
+                if (t < EDGE_VALUES.length) {
+                    vector.put(input, EDGE_VALUES[(t + i) % EDGE_VALUES.length]);
+                } else if (t < EDGE_VALUES.length + inputs.size()) {
+                    vector.put(input, t - EDGE_VALUES.length == i ? null : EDGE_VALUES[i % EDGE_VALUES.length]);
+                } else if (t < EDGE_VALUES.length + inputs.size() + RANDOM_INPUTS) {
+                    vector.put(input, random.nextInt(2001) - 1000 + random.nextInt(4) / 4.0);
+                } else {
+                    vector.put(input, Math.scalb(random.nextDouble() - 0.5, random.nextInt(120) - 60));
+                }
+                i++;
+            }
+            for (String dest : dests) {
+                vector.putIfAbsent(dest, 7919.0 + random.nextInt(1000));
+            }
+            vectors.add(vector);
+        }
+
+        return vectors;
+    }
+
+    // null stands for the mlog null
+    private static Double value(String token, Map<String, Double> env) {
+        return Instruction.isVariable(token) ? env.get(token) : Double.valueOf(token);
+    }
+
+    // ops read null as 0 and give null for results that aren't finite, while set copies values as they are
+    private static Map<String, Double> evaluate(List<Step> code, Map<String, Double> vector) {
+        Map<String, Double> env = new HashMap<>(vector);
+        for (Step step : code) {
+            if (step.op.equals("set")) {
+                env.put(step.dest, value(step.a, env));
+                continue;
+            }
+            Double aValue = value(step.a, env);
+            Double bValue = value(step.b, env);
+            double a = aValue == null ? 0 : aValue;
+            double b = bValue == null ? 0 : bValue;
+            double result;
+            switch (step.op) {
+                case "add":
+                    result = a + b;
+                    break;
+                case "sub":
+                    result = a - b;
+                    break;
+                case "mul":
+                    result = a * b;
+                    break;
+                case "div":
+                    result = a / b;
+                    break;
+                case "mod":
+                    result = a % b;
+                    break;
+                default:
+                    throw new RuntimeException("unknown operation: " + step.op);
+            }
+            env.put(step.dest, Double.isFinite(result) ? result : null);
+        }
+        return env;
+    }
+
+    // each value is a polynomial from monomial to coefficient; div by non-constants and mod become opaque symbols
+    private static Map<String, TreeMap<String, Double>> symbolic(List<Step> code, Set<String> inputs) {
+        Map<String, TreeMap<String, Double>> env = new HashMap<>();
+        for (Step step : code) {
+            TreeMap<String, Double> a = symbol(step.a, env, inputs);
+            TreeMap<String, Double> b = step.b == null ? null : symbol(step.b, env, inputs);
+            TreeMap<String, Double> result;
+            switch (step.op) {
+                case "set":
+                    result = a;
+                    break;
+                case "add":
+                    result = combine(a, b, 1);
+                    break;
+                case "sub":
+                    result = combine(a, b, -1);
+                    break;
+                case "mul":
+                    result = multiply(a, b);
+                    break;
+                case "div":
+                    if (b.size() == 1 && b.containsKey("")) {
+                        result = scale(a, 1 / b.get(""));
+                    } else {
+                        result = opaque(a, "/", b);
+                    }
+                    break;
+                default:
+                    result = opaque(a, step.op, b);
+                    break;
+            }
+            env.put(step.dest, result);
+        }
+        return env;
+    }
+
+    private static TreeMap<String, Double> symbol(String token, Map<String, TreeMap<String, Double>> env, Set<String> inputs) {
+        if (env.containsKey(token)) {
+            return env.get(token);
+        }
+        TreeMap<String, Double> poly = new TreeMap<>();
+        if (Instruction.isVariable(token)) {
+            poly.put(inputs.contains(token) ? token : "#" + token, 1.0);
+        } else if (Double.parseDouble(token) != 0) {
+            poly.put("", Double.parseDouble(token));
+        }
+        return poly;
+    }
+
+    private static TreeMap<String, Double> combine(TreeMap<String, Double> a, TreeMap<String, Double> b, double sign) {
+        TreeMap<String, Double> result = new TreeMap<>(a);
+        for (Map.Entry<String, Double> term : b.entrySet()) {
+            result.merge(term.getKey(), sign * term.getValue(), Double::sum);
+        }
+        result.values().removeIf(c -> c == 0);
+        return result;
+    }
+
+    private static String monomial(String a, String b) {
+        List<String> factors = new ArrayList<>();
+        for (String m : new String[]{a, b}) {
+            if (!m.isEmpty()) {
+                factors.addAll(Arrays.asList(m.split("\\*")));
+            }
+        }
+        factors.sort(null);
+        return String.join("*", factors);
+    }
+
+    private static TreeMap<String, Double> multiply(TreeMap<String, Double> a, TreeMap<String, Double> b) {
+        TreeMap<String, Double> result = new TreeMap<>();
+        for (Map.Entry<String, Double> x : a.entrySet()) {
+            for (Map.Entry<String, Double> y : b.entrySet()) {
+                result.merge(monomial(x.getKey(), y.getKey()), x.getValue() * y.getValue(), Double::sum);
+            }
+        }
+        result.values().removeIf(c -> c == 0);
+        return result;
+    }
+
+    private static TreeMap<String, Double> scale(TreeMap<String, Double> a, double factor) {
+        if (!Double.isFinite(factor)) {
+            return opaque(a, "/", new TreeMap<>());
+        }
+        TreeMap<String, Double> result = new TreeMap<>();
+        for (Map.Entry<String, Double> term : a.entrySet()) {
+            result.put(term.getKey(), term.getValue() * factor);
+        }
+        result.values().removeIf(c -> c == 0);
+        return result;
+    }
+
+    private static TreeMap<String, Double> opaque(TreeMap<String, Double> a, String op, TreeMap<String, Double> b) {
+        TreeMap<String, Double> result = new TreeMap<>();
+        // kept free of '*' so it splits as a single monomial factor
+        result.put(("(" + a + op + b + ")").replace("*", "^"), 1.0);
+        return result;
+    }
+
+    private void saveCache() throws IOException {
+        if (cacheFile == null || !cacheChanged) {
+            return;
+        }
+
+        List<String> lines = new ArrayList<>();
+        lines.add(CACHE_VERSION);
+        for (Map.Entry<String, String> entry : cache.entrySet()) {
+            lines.add(entry.getKey() + "\t" + entry.getValue());
+        }
+        Files.write(cacheFile, lines);
+        cacheChanged = false;
+    }
+}
@@ -0,0 +1,117 @@
+// the processor a program is compiled for and the blocks linked to it
+public class TargetProfile {
+    // the most instructions a processor of any kind holds
+    public static final int INSTRUCTION_LIMIT = 1000;
+    private static final int BANK_CAPACITY = 512;
+    private static final int CELL_CAPACITY = 64;
+
+    private final String processor;
+    private final int rate;
+    private final Integer limit;
+    private final String bank;
+    private final String message;
+    private final String display;
+
+    public TargetProfile(String processor, Integer limit, String bank, String message, String display) {
+        this.processor = processor;
+        this.rate = rate(processor);
+        this.limit = limit;
+        this.bank = bank;
+        this.message = message;
+        this.display = display;
+    }
+
+    // what the compiler assumed before it took a target: a logic processor linked to bank1, message1
+    // and display1, with no check on the program's size
+    public static TargetProfile defaults() {
+        return new TargetProfile("logic", null, "bank1", "message1", "display1");
+    }
+
+    private static int rate(String processor) {
+        switch (processor) {
+            case "micro":
+                return CostAnalyzer.MICRO_RATE;
+            case "logic":
+                return CostAnalyzer.LOGIC_RATE;
+            case "hyper":
+                return CostAnalyzer.HYPER_RATE;
+            default:
+                throw new RuntimeException("unknown processor: " + processor);
+        }
+    }
+
+    // a processor and the settings that differ from its defaults, such as "micro,bank=cell1,limit=900"
+    public static TargetProfile parse(String spec) {
+        String[] parts = spec.split(",");
+        TargetProfile defaults = defaults();
+        String bank = defaults.bank;
+        String message = defaults.message;
+        String display = defaults.display;
+        int limit = INSTRUCTION_LIMIT;
+
+        for (int i = 1; i < parts.length; i++) {
+            String[] setting = parts[i].split("=", 2);
+            if (setting.length != 2 || setting[1].isEmpty()) {
+                throw new RuntimeException("expected <setting>=<value>: " + parts[i]);
+            }
+            switch (setting[0]) {
+                case "bank":
+                    bank = setting[1];
+                    break;
+                case "message":
+                    message = setting[1];
+                    break;
+                case "display":
+                    display = setting[1];
+                    break;
+                case "limit":
+                    try {
+                        limit = Integer.parseInt(setting[1]);
+                    } catch (NumberFormatException e) {
+                        throw new RuntimeException("instruction limit must be a whole number: " + setting[1]);
+                    }
+                    if (limit < 1 || limit > INSTRUCTION_LIMIT) {
+                        throw new RuntimeException(String.format("instruction limit must be from 1 to %d: %d",
+                                INSTRUCTION_LIMIT, limit));
+                    }
+                    break;
+                default:
+                    throw new RuntimeException("unknown target setting: " + setting[0]);
+            }
+        }
+
+        return new TargetProfile(parts[0], limit, bank, message, display);
+    }
+
+    // cells a memory block holds, which its name tells
+    public static int capacity(String block) {
+        return block.startsWith("cell") ? CELL_CAPACITY : BANK_CAPACITY;
+    }
+
+    public String getProcessor() {
+        return processor;
+    }
+
+    // instructions the processor runs per tick
+    public int getRate() {
+        return rate;
+    }
+
+    // the most instructions the program may take, or null if it isn't checked
+    public Integer getLimit() {
+        return limit;
+    }
+
+    // the memory block holding the stack
+    public String getBank() {
+        return bank;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getDisplay() {
+        return display;
+    }
+}
@@ -0,0 +1,103 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// tasks share one processor by saving their resume address and jumping to the next task's
+// stub, which continues that task through @counter
+public class TaskScheduler {
+    // marks statement boundaries in a task body, where no register or stack slot is live
+    public static final String YIELD_POINT = "label .yieldPoint";
+    public static final String STUB_PREFIX = ".taskStub";
+
+    public static List<String> yieldInstructions(String pcVariable, int nextTask) {
+        List<String> instructions = new ArrayList<>();
+        instructions.add(String.format("op add %s @counter 1", pcVariable));
+        instructions.add(String.format("jump %s%d always null null", STUB_PREFIX, nextTask));
+        return instructions;
+    }
+
+    private static boolean isYieldJump(Instruction instruction) {
+        return instruction.isJump() && instruction.arg(0).startsWith(STUB_PREFIX);
+    }
+
+    // straight line instructions from line up to the next statement boundary, label or jump,
+    // or -1 if they end in a yield of their own
+    private static int runLength(List<String> body, int line) {
+        int length = 0;
+        for (; line < body.size(); line++) {
+            Instruction instruction = Instruction.parse(body.get(line));
+            if (instruction.isLabel()) {
+                break;
+            }
+            length++;
+            if (isYieldJump(instruction)) {
+                return -1;
+            }
+            if (instruction.isJump() || instruction.getOpcode().equals("end")) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    // yields before every backward jump not already preceded by one, and at a statement boundary when the code up to the next
+    // one would run more than slice instructions since the last yield; counts merge at labels
+    public static List<String> insertYields(List<String> body, int slice, List<String> yield) {
+        List<String> processedInstructions = new ArrayList<>();
+        Set<String> defined = new HashSet<>();
+        Map<String, Integer> pending = new HashMap<>();
+        int count = 0;
+        boolean reachable = true;
+        boolean yielded = false;
+
+        for (int line = 0; line < body.size(); line++) {
+            String text = body.get(line);
+            if (text.equals(YIELD_POINT)) {
+                int run = runLength(body, line + 1);
+                if (count > 0 && run >= 0 && count + run > slice) {
+                    processedInstructions.addAll(yield);
+                    count = 0;
+                    yielded = true;
+                }
+                continue;
+            }
+
+            Instruction instruction = Instruction.parse(text);
+            if (instruction.isLabel()) {
+                int merged = pending.getOrDefault(instruction.arg(0), 0);
+                count = reachable ? Math.max(count, merged) : merged;
+                reachable = true;
+                yielded = false;
+                defined.add(instruction.arg(0));
+                processedInstructions.add(text);
+                continue;
+            }
+
+            boolean backward = instruction.isJump() && defined.contains(instruction.arg(0));
+            if (backward && !yielded) {
+                processedInstructions.addAll(yield);
+                count = 0;
+            }
+
+            processedInstructions.add(text);
+            count++;
+            yielded = isYieldJump(instruction);
+
+            if (yielded) {
+                count = 0;
+            } else if (instruction.isJump() && !backward) {
+                pending.merge(instruction.arg(0), count, Math::max);
+            }
+            if ((instruction.isJump() && instruction.arg(1).equals("always") && !isYieldJump(instruction))
+                    || instruction.getOpcode().equals("end")) {
+                reachable = false;
+                count = 0;
+            }
+        }
+
+        return processedInstructions;
+    }
+}
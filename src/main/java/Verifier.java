@@ -0,0 +1,27 @@
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// checks label form instructions are well formed, so a broken pass is caught where it runs
+public class Verifier {
+
+    public static void verify(List<String> instructions, String after) {
+        Set<String> labels = new HashSet<>();
+
+        for (String instruction : instructions) {
+            if (instruction.isBlank()) {
+                throw new RuntimeException("empty instruction after " + after);
+            }
+
+            String labelName = LabelFixer.labelName(instruction);
+            if (labelName != null && !labels.add(labelName)) {
+                throw new RuntimeException(String.format("duplicate label '%s' after %s", labelName, after));
+            }
+        }
+
+        Set<String> unresolved = LabelFixer.unresolvedLabels(instructions);
+        if (!unresolved.isEmpty()) {
+            throw new RuntimeException(String.format("invalid jump to label '%s' after %s", unresolved.iterator().next(), after));
+        }
+    }
+}
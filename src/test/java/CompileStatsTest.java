@@ -0,0 +1,51 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompileStatsTest {
+
+    @Test
+    void phases() {
+        CompileStats stats = new CompileStats("in.txt");
+
+        CompileStats.Phase phase = stats.start("compileVisitor", 0);
+        List<String> allocated = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            allocated.add("set a " + i);
+        }
+        phase.finish(allocated.size());
+
+        phase = stats.start("labelFixer", 1000);
+        phase.finish(990);
+
+        assertEquals(2, stats.getPhases().size());
+        assertEquals("compileVisitor", stats.getPhases().get(0).getName());
+        assertEquals(1000, stats.getPhases().get(0).getInstructionsAfter());
+        assertTrue(stats.getPhases().get(0).getAllocatedBytes() > 0);
+        assertEquals(990, stats.getPhases().get(1).getInstructionsAfter());
+        assertTrue(stats.getWallNanos() >= stats.getPhases().get(0).getWallNanos());
+    }
+
+    @Test
+    void toJson() {
+        CompileStats stats = new CompileStats("dir\\\"in\".txt");
+        stats.setParseTreeSize(42);
+        stats.setSpills(3, 3);
+        stats.start("lexing", 0).finish(0);
+        stats.start("output", 7).finish(7);
+
+        String json = stats.toJson();
+        assertTrue(json.contains("\"input\": \"dir\\\\\\\"in\\\".txt\""));
+        assertTrue(json.contains("\"parseTreeSize\": 42,"));
+        assertTrue(json.contains("\"pushes\": 3,"));
+        assertTrue(json.contains("\"instructions\": 7,"));
+        assertTrue(json.contains("{\"name\": \"lexing\", \"wallNanos\": "));
+        assertTrue(json.contains("\"instructionsBefore\": 7, \"instructionsAfter\": 7, \"instructionsRemoved\": 0}\n  ]\n}\n"));
+
+        // empty stats test
+        assertTrue(new CompileStats("x").toJson().endsWith("\"phases\": []\n}\n"));
+    }
+}
@@ -4,10 +4,14 @@ import org.antlr.v4.runtime.tree.ParseTree;
 import org.junit.jupiter.api.Test;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 // Tests remaining:
 //     functions
@@ -40,6 +44,10 @@ class CompileVisitorTest {
     }
 
     private List<String> parseCode(String code, String node) {
+        return parseCode(code, node, new CompileVisitor());
+    }
+
+    private List<String> parseCode(String code, String node, CompileVisitor visitor) {
         MinAsmLexer lexer = new MinAsmLexer(CharStreams.fromString(code));
         MinAsmParser parser = new MinAsmParser(new CommonTokenStream(lexer));
         ParseTree tree;
@@ -77,6 +85,9 @@ class CompileVisitorTest {
             case "print":
                 tree = parser.print();
                 break;
+            case "printflush":
+                tree = parser.printflush();
+                break;
             case "draw":
                 tree = parser.draw();
                 break;
@@ -95,7 +106,6 @@ class CompileVisitorTest {
             default:
                 throw new RuntimeException("unknown node type: " + node);
         }
-        CompileVisitor visitor = new CompileVisitor();
         return visitor.visit(tree);
     }
 
@@ -187,6 +197,27 @@ class CompileVisitorTest {
         actual = parseCode(";", "block");
         expected = genList();
         checkResults(expected, actual);
+
+        // test adjacent prints share a flush and merge constants
+        actual = parseCode("{ print \"x: \"; print 4, x; print \"!\"; a = 1; print a; }", "block");
+        expected = genList(
+                "print \"x: 4\"",
+                "print x",
+                "print \"!\"",
+                "printflush " + MESSAGE,
+                "set a 1",
+                "print a",
+                "printflush " + MESSAGE);
+        checkResults(expected, actual);
+
+        // test explicit flush replaces the implicit one
+        actual = parseCode("{ print a; printflush(message2); print b; }", "block");
+        expected = genList(
+                "print a",
+                "printflush message2",
+                "print b",
+                "printflush " + MESSAGE);
+        checkResults(expected, actual);
     }
 
     @Test
@@ -248,13 +279,144 @@ class CompileVisitorTest {
         checkResults(expected, actual);
 
         // test asm
-        actual = parseCode("asm(\"anything here\"", "stmt");
-        expected = genList("anything here");
+        actual = parseCode("asm(\"op add a a 1\");", "stmt");
+        expected = genList("op add a a 1");
         checkResults(expected, actual);
     }
 
     @Test
     void visitFuncCallExpr() {
+        List<String> actual, expected;
+
+        // test every call gets its own labels
+        actual = parseCode("function f() { if (a) b = 1; } f(); f();", "program");
+        expected = genList(
+                "set bp 0",
+                "set eax 0",
+                "set ebx 0",
+                "set ecx 0",
+                "set edx 0",
+                "jump .ifLbl0.1 equal a 0",
+                "set b 1",
+                "label .ifLbl0.1",
+                "jump .ifLbl0.2 equal a 0",
+                "set b 1",
+                "label .ifLbl0.2",
+                "end");
+        checkResults(expected, actual);
+
+        // test builtins
+        actual = parseCode("wait(0.5)", "expr");
+        checkResults(genList("wait 0.5"), actual);
+
+        actual = parseCode("wait(t * 2)", "expr");
+        checkResults(genList("op mul eax t 2", "wait eax"), actual);
+
+        actual = parseCode("yield()", "expr");
+        checkResults(genList("wait 0.001"), actual);
+
+        // test math intrinsics lower to a single op
+        actual = parseCode("abs(x)", "expr");
+        checkResults(genList("op abs eax x null"), actual);
+
+        actual = parseCode("max(a, b * 2)", "expr");
+        checkResults(genList("op mul eax b 2", "op max eax a eax"), actual);
+
+        actual = parseCode("sqrt(9) + floor(-2.5) * cos(0)", "expr");
+        expected = genList(
+                "set eax 3",
+                "write eax bank1 bp",
+                "op add bp bp 1",
+                "set eax -3",
+                "write eax bank1 bp",
+                "op add bp bp 1",
+                "set eax 1",
+                "op sub bp bp 1",
+                "read ebx bank1 bp",
+                "op mul eax ebx eax",
+                "op sub bp bp 1",
+                "read ebx bank1 bp",
+                "op add eax ebx eax");
+        checkResults(expected, actual);
+
+        // noise and angle aren't folded, since the processor computes them differently
+        actual = parseCode("noise(1, 2) + angle(3, 4)", "expr");
+        checkResults(genList("op noise eax 1 2", "write eax bank1 bp", "op add bp bp 1",
+                "op angle eax 3 4", "op sub bp bp 1", "read ebx bank1 bp", "op add eax ebx eax"), actual);
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> parseCode("min(1)", "expr"));
+        assertEquals("min takes 2 arguments", e.getMessage());
+
+        // test user functions shadow intrinsics
+        actual = parseCode("function abs(v) { v = 1; } abs(x);", "program");
+        assertEquals("set abs_v 1", actual.get(6));
+
+        // test calling a linked function
+        Map<String, List<String>> symbols = new HashMap<>();
+        symbols.put("g", genList("label .ifLbl0", "jump done always null null"));
+        CompileVisitor visitor = new CompileVisitor();
+        visitor.link(new ObjectFile(symbols));
+        actual = parseCode("g()", "expr", visitor);
+        expected = genList(
+                "label .ifLbl0.0",
+                "jump done always null null");
+        checkResults(expected, actual);
+
+        // test functions called often enough become shared subroutines when optimizing for size
+        visitor = new CompileVisitor();
+        visitor.setOptimizeForSize(true);
+        actual = parseCode("function f() { if (a) b = 1; c = 2; d = 3; } f(); f(); f();", "program", visitor);
+        expected = genList(
+                "set bp 0",
+                "set eax 0",
+                "set ebx 0",
+                "set ecx 0",
+                "set edx 0",
+                "op add retAddr @counter 1",
+                "jump .funcLblf always null null",
+                "op add retAddr @counter 1",
+                "jump .funcLblf always null null",
+                "op add retAddr @counter 1",
+                "jump .funcLblf always null null",
+                "end",
+                "label .funcLblf",
+                "jump .ifLbl0 equal a 0",
+                "set b 1",
+                "label .ifLbl0",
+                "set c 2",
+                "set d 3",
+                "set @counter retAddr");
+        checkResults(expected, actual);
+
+        // test a linked subroutine's labels don't clash with the program's
+        visitor = new CompileVisitor();
+        visitor.setOptimizeForSize(true);
+        symbols.put("g", genList("jump .ifLbl0 equal a 0", "set b 1", "set c 2", "label .ifLbl0", "set d 3"));
+        visitor.link(new ObjectFile(symbols));
+        actual = parseCode("if (x) { g(); } g(); g();", "program", visitor);
+        expected = genList(
+                "set bp 0",
+                "set eax 0",
+                "set ebx 0",
+                "set ecx 0",
+                "set edx 0",
+                "jump .ifLbl0 equal x 0",
+                "op add retAddr @counter 1",
+                "jump .funcLblg always null null",
+                "label .ifLbl0",
+                "op add retAddr @counter 1",
+                "jump .funcLblg always null null",
+                "op add retAddr @counter 1",
+                "jump .funcLblg always null null",
+                "end",
+                "label .funcLblg",
+                "jump .ifLbl0.g equal a 0",
+                "set b 1",
+                "set c 2",
+                "label .ifLbl0.g",
+                "set d 3",
+                "set @counter retAddr");
+        checkResults(expected, actual);
     }
 
     @Test
@@ -393,7 +555,53 @@ class CompileVisitorTest {
         testBinOp(MinAsmParser.BAND, "left");
         testBinOp(MinAsmParser.BXOR, "left");
         testBinOp(MinAsmParser.BOR, "left");
-        testBinOp(MinAsmParser.LAND, "left");
+
+        List<String> actual, expected;
+
+        // test && of atoms stays a single land
+        actual = parseCode("a && b", "expr");
+        expected = genList("op land eax a b");
+        checkResults(expected, actual);
+
+        // test && short circuits past a compound right operand
+        actual = parseCode("a && (b + 1)", "expr");
+        expected = genList(
+                "set eax a",
+                "jump .scLbl0 equal eax 0",
+                "op add eax b 1",
+                "label .scLbl0",
+                "op notEqual eax eax 0");
+        checkResults(expected, actual);
+
+        // test && of compound operands needs no spill
+        actual = parseCode("(1 < 2) && (3 < 4)", "expr");
+        expected = genList(
+                "op lessThan eax 1 2",
+                "jump .scLbl0 equal eax 0",
+                "op lessThan eax 3 4",
+                "label .scLbl0",
+                "op notEqual eax eax 0");
+        checkResults(expected, actual);
+
+        // test || short circuits
+        actual = parseCode("a || b", "expr");
+        expected = genList(
+                "set eax a",
+                "jump .scLbl0 notEqual eax 0",
+                "set eax b",
+                "label .scLbl0",
+                "op notEqual eax eax 0");
+        checkResults(expected, actual);
+
+        // test && binds tighter than ||
+        actual = parseCode("a || b && c", "expr");
+        expected = genList(
+                "set eax a",
+                "jump .scLbl0 notEqual eax 0",
+                "op land eax b c",
+                "label .scLbl0",
+                "op notEqual eax eax 0");
+        checkResults(expected, actual);
     }
 
     @Test
@@ -416,6 +624,36 @@ class CompileVisitorTest {
                 "op not eax 5 null",
                 "set a eax");
         checkResults(expected, actual);
+
+        // test short circuit expression stores directly
+        actual = parseCode("c = a || #s.enabled", "expr");
+        expected = genList(
+                "set eax a",
+                "jump .scLbl0 notEqual eax 0",
+                "sensor eax s @enabled",
+                "label .scLbl0",
+                "op notEqual c eax 0");
+        checkResults(expected, actual);
+
+        // test sensor reads store directly
+        actual = parseCode("a = #s.enabled", "expr");
+        expected = genList("sensor a s @enabled");
+        checkResults(expected, actual);
+
+        // test intrinsics and rand store directly
+        actual = parseCode("a = len(x, y)", "expr");
+        expected = genList("op len a x y");
+        checkResults(expected, actual);
+
+        actual = parseCode("a = min(3, 4)", "expr");
+        expected = genList("set a 3");
+        checkResults(expected, actual);
+
+        actual = parseCode("a = rand(n + 1)", "expr");
+        expected = genList(
+                "op add eax n 1",
+                "op rand a eax null");
+        checkResults(expected, actual);
     }
 
     @Test
@@ -476,6 +714,165 @@ class CompileVisitorTest {
         checkResults(expected, actual);
     }
 
+    @Test
+    void visitChannel() {
+        List<String> actual, expected;
+
+        // test send checks for room, then writes every value before publishing the tail
+        actual = parseCode("{ channel c(bank2, 4); send(c, 5, x * 2); }", "block");
+        expected = genList(
+                "op mul eax x 2",
+                "read ecx bank2 0",
+                "read edx bank2 1",
+                "op sub ebx ecx edx",
+                "op add ebx ebx 4",
+                "op mod ebx ebx 5",
+                "jump .sendFailLbl0 lessThan ebx 2",
+                "op add ebx edx 1",
+                "op mod ebx ebx 5",
+                "op add ebx ebx 2",
+                "write eax bank2 ebx",
+                "op add ebx edx 2",
+                "write 5 bank2 ebx",
+                "op add edx edx 2",
+                "op mod edx edx 5",
+                "write edx bank2 1",
+                "set eax 1",
+                "jump .sendLbl0 always null null",
+                "label .sendFailLbl0",
+                "set eax 0",
+                "label .sendLbl0");
+        checkResults(expected, actual);
+
+        // test a second channel follows the first and earlier computed values wait on the stack
+        actual = parseCode("{ channel c(bank2, 4); channel d(bank2, 1); send(d, a + 1, b + 1); }", "block");
+        expected = genList(
+                "op add eax a 1",
+                "write eax " + MEMORY_BANK + " bp",
+                "op add bp bp 1",
+                "op add eax b 1",
+                "read ecx bank2 7",
+                "read edx bank2 8",
+                "op sub ebx ecx edx",
+                "op add ebx ebx 1",
+                "op mod ebx ebx 2",
+                "jump .sendFailLbl0 lessThan ebx 2",
+                "op add ebx edx 1",
+                "op mod ebx ebx 2",
+                "op add ebx ebx 9",
+                "write eax bank2 ebx",
+                "op sub bp bp 1",
+                "read ecx " + MEMORY_BANK + " bp",
+                "op add ebx edx 9",
+                "write ecx bank2 ebx",
+                "op add edx edx 2",
+                "op mod edx edx 2",
+                "write edx bank2 8",
+                "set eax 1",
+                "jump .sendLbl0 always null null",
+                "label .sendFailLbl0",
+                "op sub bp bp 1",
+                "set eax 0",
+                "label .sendLbl0");
+        checkResults(expected, actual);
+
+        // test recv
+        actual = parseCode("{ channel c(bank2, 4); recv(c, y); }", "block");
+        expected = genList(
+                "read ecx bank2 0",
+                "read edx bank2 1",
+                "jump .recvFailLbl0 equal ecx edx",
+                "op add ebx ecx 2",
+                "read y bank2 ebx",
+                "op add ecx ecx 1",
+                "op mod ecx ecx 5",
+                "write ecx bank2 0",
+                "set eax 1",
+                "jump .recvLbl0 always null null",
+                "label .recvFailLbl0",
+                "set eax 0",
+                "label .recvLbl0");
+        checkResults(expected, actual);
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> parseCode("channel c(bank1, 4);", "stmt"));
+        assertEquals("channel c can't use bank1, which holds the stack", e.getMessage());
+
+        e = assertThrows(RuntimeException.class, () -> parseCode("channel c(bank2, 600);", "stmt"));
+        assertEquals("channel c doesn't fit in bank2", e.getMessage());
+
+        // a memory cell is smaller than a bank, and the target can put the stack in another block
+        e = assertThrows(RuntimeException.class, () -> parseCode("channel c(cell1, 62);", "stmt"));
+        assertEquals("channel c doesn't fit in cell1", e.getMessage());
+        CompileVisitor visitor = new CompileVisitor();
+        visitor.setTarget(TargetProfile.parse("logic,bank=bank3"));
+        e = assertThrows(RuntimeException.class, () -> parseCode("channel c(bank3, 4);", "stmt", visitor));
+        assertEquals("channel c can't use bank3, which holds the stack", e.getMessage());
+
+        e = assertThrows(RuntimeException.class, () -> parseCode("recv(c, y)", "expr"));
+        assertEquals("unknown channel: c", e.getMessage());
+    }
+
+    @Test
+    void visitTask() {
+        List<String> actual, expected;
+
+        actual = parseCode("task a(3) { while (1) { x = 1; y = 2; z = 3; } } task b { n += 1; }", "program");
+        expected = genList(
+                "set bp 0",
+                "set eax 0",
+                "set ebx 0",
+                "set ecx 0",
+                "set edx 0",
+                "op add pc_a @counter 1",
+                "jump .taskInitLbl0 always null null",
+                "label .whileLbl1",
+                "jump .contLbl1 equal 1 0",
+                "set x 1",
+                "set y 2",
+                "op add pc_a @counter 1",
+                "jump .taskStub1 always null null",
+                "set z 3",
+                "op add pc_a @counter 1",
+                "jump .taskStub1 always null null",
+                "jump .whileLbl1 always null null",
+                "label .contLbl1",
+                "label .taskEndLbl0",
+                "op add pc_a @counter 1",
+                "jump .taskStub1 always null null",
+                "jump .taskEndLbl0 always null null",
+                "label .taskInitLbl0",
+                "op add pc_b @counter 1",
+                "jump .taskInitLbl2 always null null",
+                "op add n n 1",
+                "label .taskEndLbl2",
+                "op add pc_b @counter 1",
+                "jump .taskStub0 always null null",
+                "jump .taskEndLbl2 always null null",
+                "label .taskInitLbl2",
+                "label .taskStub0",
+                "set @counter pc_a",
+                "label .taskStub1",
+                "set @counter pc_b",
+                "end");
+        checkResults(expected, actual);
+
+        // test yield inside a task switches to the next one
+        actual = parseCode("task a { yield(); }", "program");
+        assertEquals("op add pc_a @counter 1", actual.get(7));
+        assertEquals("jump .taskStub0 always null null", actual.get(8));
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> parseCode("task a {} task a {}", "program"));
+        assertEquals("duplicate task: a", e.getMessage());
+    }
+
+    @Test
+    void visitStable() {
+        CompileVisitor visitor = new CompileVisitor();
+        List<String> actual = parseCode("stable #switch1.enabled;", "stmt", visitor);
+        checkResults(genList(), actual);
+        assertEquals(Set.of("switch1 @enabled"), visitor.getStableSensors());
+    }
+
     @Test
     void visitNakedIf() {
         List<String> actual, expected;
@@ -488,6 +885,28 @@ class CompileVisitorTest {
                 "set b 7",
                 "label .ifLbl0");
         checkResults(expected, actual);
+
+        // test && condition lowers to a jump chain
+        actual = parseCode("if (a < 1 && #s.enabled) b = 1;", "ifStmt");
+        expected = genList(
+                "op lessThan eax a 1",
+                "jump .ifLbl0 equal eax 0",
+                "sensor eax s @enabled",
+                "jump .ifLbl0 equal eax 0",
+                "set b 1",
+                "label .ifLbl0");
+        checkResults(expected, actual);
+
+        // test || condition lowers to a jump chain
+        actual = parseCode("if (a || b < 2) c = 1;", "ifStmt");
+        expected = genList(
+                "jump .scLbl1 notEqual a 0",
+                "op lessThan eax b 2",
+                "jump .ifLbl0 equal eax 0",
+                "label .scLbl1",
+                "set c 1",
+                "label .ifLbl0");
+        checkResults(expected, actual);
     }
 
     @Test
@@ -506,6 +925,39 @@ class CompileVisitorTest {
                 "set d 9",
                 "label .contLbl0");
         checkResults(expected, actual);
+
+        // test hot then block is laid out last
+        Map<String, Long> counts = new HashMap<>();
+        counts.put(".thenLbl0", 90L);
+        counts.put(".ifLbl0", 10L);
+        CompileVisitor visitor = new CompileVisitor();
+        visitor.setProfile(new Profile(counts));
+        actual = parseCode("if (a || b) { c = 8; } else { d = 9; }", "ifStmt", visitor);
+        expected = genList(
+                "jump .thenLbl0 notEqual a 0",
+                "jump .thenLbl0 notEqual b 0",
+                "label .ifLbl0",
+                "set d 9",
+                "jump .contLbl0 always null null",
+                "label .thenLbl0",
+                "set c 8",
+                "label .contLbl0");
+        checkResults(expected, actual);
+
+        // test cold then block keeps the usual layout
+        counts.put(".ifLbl0", 200L);
+        visitor = new CompileVisitor();
+        visitor.setProfile(new Profile(counts));
+        actual = parseCode("if (a) { c = 8; } else { d = 9; }", "ifStmt", visitor);
+        expected = genList(
+                "jump .ifLbl0 equal a 0",
+                "label .thenLbl0",
+                "set c 8",
+                "jump .contLbl0 always null null",
+                "label .ifLbl0",
+                "set d 9",
+                "label .contLbl0");
+        checkResults(expected, actual);
     }
 
     @Test
@@ -521,6 +973,72 @@ class CompileVisitorTest {
                 "jump .whileLbl0 always null null",
                 "label .contLbl0");
         checkResults(expected, actual);
+
+        // test hot loop tests its condition at the bottom
+        Map<String, Long> counts = new HashMap<>();
+        counts.put(".bodyLbl0", 500L);
+        counts.put(".contLbl0", 5L);
+        CompileVisitor visitor = new CompileVisitor();
+        visitor.setProfile(new Profile(counts));
+        actual = parseCode("while (a < 4) { a += 1; }", "whileLoop", visitor);
+        expected = genList(
+                "jump .whileLbl0 always null null",
+                "label .bodyLbl0",
+                "op add a a 1",
+                "label .whileLbl0",
+                "op lessThan eax a 4",
+                "jump .bodyLbl0 notEqual eax 0",
+                "label .contLbl0");
+        checkResults(expected, actual);
+
+        // test empty sensor polling loops wait between polls
+        visitor = new CompileVisitor();
+        visitor.setIdleWait("0.5");
+        actual = parseCode("while (#switch1.enabled == 0);", "whileLoop", visitor);
+        expected = genList(
+                "label .whileLbl0",
+                "sensor eax switch1 @enabled",
+                "op equal eax eax 0",
+                "jump .contLbl0 equal eax 0",
+                "wait 0.5",
+                "jump .whileLbl0 always null null",
+                "label .contLbl0");
+        checkResults(expected, actual);
+
+        // test loops not polling a sensor keep spinning
+        actual = parseCode("while (a == 0);", "whileLoop", visitor);
+        expected = genList(
+                "label .whileLbl1",
+                "op equal eax a 0",
+                "jump .contLbl1 equal eax 0",
+                "jump .whileLbl1 always null null",
+                "label .contLbl1");
+        checkResults(expected, actual);
+
+        // test instrumented builds label loop bodies
+        visitor = new CompileVisitor();
+        visitor.setBlockLabels(true);
+        actual = parseCode("while (a < 4) { a += 1; }", "whileLoop", visitor);
+        expected = genList(
+                "label .whileLbl0",
+                "op lessThan eax a 4",
+                "jump .contLbl0 equal eax 0",
+                "label .bodyLbl0",
+                "op add a a 1",
+                "jump .whileLbl0 always null null",
+                "label .contLbl0");
+        checkResults(expected, actual);
+
+        // test atom conditions jump without loading eax
+        actual = parseCode("while (a && b) a -= 1;", "whileLoop");
+        expected = genList(
+                "label .whileLbl0",
+                "jump .contLbl0 equal a 0",
+                "jump .contLbl0 equal b 0",
+                "op sub a a 1",
+                "jump .whileLbl0 always null null",
+                "label .contLbl0");
+        checkResults(expected, actual);
     }
 
     @Test
@@ -543,6 +1061,219 @@ class CompileVisitorTest {
 
     @Test
     void visitFunction() {
+        List<String> actual, expected;
+
+        // test parameters are bound before the body and return leaves the result in eax
+        actual = parseCode("function sq(v) { return v * v; } y = sq(x + 1);", "program");
+        expected = genList(
+                "set bp 0",
+                "set eax 0",
+                "set ebx 0",
+                "set ecx 0",
+                "set edx 0",
+                "op add sq_v x 1",
+                "op mul eax sq_v sq_v",
+                "label .retLbl0.1",
+                "set y eax",
+                "end");
+        checkResults(expected, actual);
+
+        // test parameters belong to their function, so arguments named like them are other variables
+        actual = parseCode("function f(a, b) { if (a) return b; return 0; } f(b, a);", "program");
+        expected = genList(
+                "set bp 0",
+                "set eax 0",
+                "set ebx 0",
+                "set ecx 0",
+                "set edx 0",
+                "set f_a b",
+                "set f_b a",
+                "jump .ifLbl0.2 equal f_a 0",
+                "set eax f_b",
+                "jump .retLbl1.2 always null null",
+                "label .ifLbl0.2",
+                "set eax 0",
+                "label .retLbl1.2",
+                "end");
+        checkResults(expected, actual);
+
+        // test an argument reading a variable named like an earlier parameter goes through the stack
+        actual = parseCode("function f(a, b) { return a - b; } r = f(x, f_a);", "program");
+        expected = genList(
+                "set bp 0",
+                "set eax 0",
+                "set ebx 0",
+                "set ecx 0",
+                "set edx 0",
+                "set eax x",
+                "write eax bank1 bp",
+                "op add bp bp 1",
+                "set eax f_a",
+                "set f_b eax",
+                "op sub bp bp 1",
+                "read f_a bank1 bp",
+                "op sub eax f_a f_b",
+                "label .retLbl0.1",
+                "set r eax",
+                "end");
+        checkResults(expected, actual);
+
+        // test a call in a function doesn't overwrite the caller's parameter of the same name
+        actual = parseCode("function g(x) { return x * 2; } function f(x) { return g(x + 1) + x; } y = f(1); z = f(w);", "program");
+        expected = genList(
+                "set bp 0",
+                "set eax 0",
+                "set ebx 0",
+                "set ecx 0",
+                "set edx 0",
+                "set g_x 2",
+                "set y 5",
+                "set f_x w",
+                "op add g_x f_x 1",
+                "op mul eax g_x 2",
+                "label .retLbl0.2.3",
+                "op add eax eax f_x",
+                "label .retLbl1.3",
+                "set z eax",
+                "end");
+        checkResults(expected, actual);
+
+        // test a call in a later argument can set a parameter bound before it, so arguments go through the stack
+        actual = parseCode("function g(a) { return a * 2; } function f(a, b) { return a + b; } r = f(x, g(y)); s = f(x, f(y, z));", "program");
+        expected = genList(
+                "set bp 0",
+                "set eax 0",
+                "set ebx 0",
+                "set ecx 0",
+                "set edx 0",
+                "set eax x",
+                "write eax bank1 bp",
+                "op add bp bp 1",
+                "set g_a y",
+                "op mul eax g_a 2",
+                "label .retLbl0.2",
+                "set f_b eax",
+                "op sub bp bp 1",
+                "read f_a bank1 bp",
+                "op add eax f_a f_b",
+                "label .retLbl1.3",
+                "set r eax",
+                "set eax x",
+                "write eax bank1 bp",
+                "op add bp bp 1",
+                "set f_a y",
+                "set f_b z",
+                "op add eax f_a f_b",
+                "label .retLbl1.4",
+                "set f_b eax",
+                "op sub bp bp 1",
+                "read f_a bank1 bp",
+                "op add eax f_a f_b",
+                "label .retLbl1.5",
+                "set s eax",
+                "end");
+        checkResults(expected, actual);
+
+        // test pure calls with constant arguments are evaluated, keeping what they leave in other variables
+        actual = parseCode("function sum(n) { s = 0; while (n > 0) { s += n; n -= 1; } return s; } function sq(v) { return v * v; } x = sum(4); y = sum(sq(2));", "program");
+        expected = genList(
+                "set bp 0",
+                "set eax 0",
+                "set ebx 0",
+                "set ecx 0",
+                "set edx 0",
+                "set s 10",
+                "set x 10",
+                "set s 10",
+                "set y 10",
+                "end");
+        checkResults(expected, actual);
+
+        // test lookup tables are filled once and calls read them, running the function for arguments between or outside their cells
+        actual = parseCode("@lut(bank2, -1, 1) function f(d) { return d * d + 1; } a = f(i); b = f(i * 2);", "program");
+        expected = genList(
+                "set bp 0",
+                "set eax 0",
+                "set ebx 0",
+                "set ecx 0",
+                "set edx 0",
+                "jump .lutLbl1 equal lut_f 1",
+                "write 2 bank2 0",
+                "write 1 bank2 1",
+                "write 2 bank2 2",
+                "set lut_f 1",
+                "label .lutLbl1",
+                "jump .lutLbl2 lessThan i -1",
+                "jump .lutLbl2 greaterThan i 1",
+                "op floor eax i",
+                "jump .lutLbl2 notEqual eax i",
+                "op add eax eax 1",
+                "read a bank2 eax",
+                "jump .lutLbl3 always null null",
+                "label .lutLbl2",
+                "set f_d i",
+                "op mul eax f_d f_d",
+                "op add eax eax 1",
+                "label .retLbl0.4",
+                "set a eax",
+                "label .lutLbl3",
+                "op mul f_d i 2",
+                "jump .lutLbl5 lessThan f_d -1",
+                "jump .lutLbl5 greaterThan f_d 1",
+                "op floor eax f_d",
+                "jump .lutLbl5 notEqual eax f_d",
+                "op add eax eax 1",
+                "read b bank2 eax",
+                "jump .lutLbl6 always null null",
+                "label .lutLbl5",
+                "op mul eax f_d f_d",
+                "op add eax eax 1",
+                "label .retLbl0.7",
+                "set b eax",
+                "label .lutLbl6",
+                "end");
+        checkResults(expected, actual);
+
+        // test a table starting the bank is read at the argument, and a call in an expression leaves its value in eax
+        actual = parseCode("@lut(bank2, 0, 1) function f(d) { return d + 1; } print f(i);", "program");
+        expected = genList(
+                "set bp 0",
+                "set eax 0",
+                "set ebx 0",
+                "set ecx 0",
+                "set edx 0",
+                "jump .lutLbl1 equal lut_f 1",
+                "write 1 bank2 0",
+                "write 2 bank2 1",
+                "set lut_f 1",
+                "label .lutLbl1",
+                "jump .lutLbl2 lessThan i 0",
+                "jump .lutLbl2 greaterThan i 1",
+                "op floor eax i",
+                "jump .lutLbl2 notEqual eax i",
+                "read eax bank2 eax",
+                "jump .lutLbl3 always null null",
+                "label .lutLbl2",
+                "set f_d i",
+                "op add eax f_d 1",
+                "label .retLbl0.4",
+                "label .lutLbl3",
+                "print eax",
+                "printflush message1",
+                "end");
+        checkResults(expected, actual);
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> parseCode("function f(a) {} f();", "program"));
+        assertEquals("f takes 1 argument", e.getMessage());
+
+        e = assertThrows(RuntimeException.class, () -> parseCode("return 1;", "program"));
+        assertEquals("return outside of a function", e.getMessage());
+
+        e = assertThrows(RuntimeException.class, () -> parseCode("@lut(bank2, 0, 3) function f(d) { return #s.enabled; }", "program"));
+        assertEquals("lookup table function f can't be evaluated at 0", e.getMessage());
+
+        e = assertThrows(RuntimeException.class, () -> parseCode("@lut(bank2, 0, 512) function f(d) { return d; }", "program"));
+        assertEquals("lookup table f doesn't fit in bank2", e.getMessage());
     }
 
     @Test
@@ -568,6 +1299,37 @@ class CompileVisitorTest {
                 "print eax",
                 "printflush " + MESSAGE);
         checkResults(expected, actual);
+
+        // test constant concatenation
+        actual = parseCode("print \"a = \", 5.50, \"; \", a, 1, 2;", "print");
+        expected = genList(
+                "print \"a = 5.5; \"",
+                "print a",
+                "print \"12\"",
+                "printflush " + MESSAGE);
+        checkResults(expected, actual);
+    }
+
+    @Test
+    void visitPrintflush() {
+        List<String> actual, expected;
+
+        // test default message
+        actual = parseCode("printflush();", "printflush");
+        expected = genList("printflush " + MESSAGE);
+        checkResults(expected, actual);
+
+        // test chosen message
+        actual = parseCode("printflush(message3);", "printflush");
+        expected = genList("printflush message3");
+        checkResults(expected, actual);
+
+        // test the target's message
+        CompileVisitor visitor = new CompileVisitor();
+        visitor.setTarget(TargetProfile.parse("micro,message=message2"));
+        actual = parseCode("printflush();", "printflush", visitor);
+        expected = genList("printflush message2");
+        checkResults(expected, actual);
     }
 
     @Test
@@ -577,6 +1339,16 @@ class CompileVisitorTest {
         actual = parseCode("draw(rect, 10, 10, 5, 5, 0, 0);", "draw");
         expected = genList("draw rect 10 10 5 5 0 0");
         checkResults(expected, actual);
+
+        // test constant geometry folding
+        actual = parseCode("draw(rect, 10 * 2, -5, 100 / 8, (4 + 1) % 3, x, 0);", "draw");
+        expected = genList("draw rect 20 -5 12.5 2 x 0");
+        checkResults(expected, actual);
+
+        // test folding through math intrinsics
+        actual = parseCode("draw(rect, ceil(2.2), abs(-4), max(1, 2) * 3, sqrt(16), x, 0);", "draw");
+        expected = genList("draw rect 3 4 6 4 x 0");
+        checkResults(expected, actual);
     }
 
     @Test
@@ -586,14 +1358,48 @@ class CompileVisitorTest {
         actual = parseCode("drawflush();", "drawflush");
         expected = genList("drawflush " + DISPLAY);
         checkResults(expected, actual);
+
+        // test chosen display
+        actual = parseCode("drawflush(display2);", "drawflush");
+        expected = genList("drawflush display2");
+        checkResults(expected, actual);
+
+        // test the target's display
+        CompileVisitor visitor = new CompileVisitor();
+        visitor.setTarget(TargetProfile.parse("logic,display=display4"));
+        actual = parseCode("drawflush();", "drawflush", visitor);
+        expected = genList("drawflush display4");
+        checkResults(expected, actual);
     }
 
     @Test
     void visitAsm() {
         List<String> actual, expected;
 
-        actual = parseCode("asm(\"anything in here\");", "asm");
-        expected = genList("anything in here");
+        actual = parseCode("asm(\"sensor  x switch1 @enabled; jump done equal x 0\nprint x\");", "asm");
+        expected = genList(
+                "sensor x switch1 @enabled",
+                "jump done equal x 0",
+                "print x");
         checkResults(expected, actual);
+
+        // test opcodes missing from the table pass through unchanged
+        actual = parseCode("asm(\"sync v; unpackcolor r g b a c; spin  x\");", "asm");
+        expected = genList(
+                "sync v",
+                "unpackcolor r g b a c",
+                "spin x");
+        checkResults(expected, actual);
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> parseCode("asm(\"set x\");", "asm"));
+        assertEquals("invalid asm: wrong number of arguments for set: set x", e.getMessage());
+
+        e = assertThrows(RuntimeException.class, () -> parseCode("asm(\"jump 4 always\");", "asm"));
+        assertEquals("asm jumps must target a label: jump 4 always", e.getMessage());
+
+        // test labels used by asm are checked with the program
+        parseCode("asm(\"jump done always\"); label done:", "program");
+        e = assertThrows(RuntimeException.class, () -> parseCode("asm(\"jump dnoe always\"); label done:", "program"));
+        assertEquals("asm jump to unknown label 'dnoe'", e.getMessage());
     }
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConstantEvaluatorTest {
+
+    private List<String> genList(String... instructions) {
+        return Arrays.asList(instructions.clone());
+    }
+
+    @Test
+    void op() {
+        assertEquals(7.0, ConstantEvaluator.op("add", 3, 4));
+        assertEquals(2.0, ConstantEvaluator.op("idiv", 7, 3));
+        assertEquals(1.0, ConstantEvaluator.op("equal", 0.1 + 0.2, 0.3));
+        assertEquals(0.0, ConstantEvaluator.op("strictEqual", 0.1 + 0.2, 0.3));
+        assertEquals(1.0, ConstantEvaluator.op("sin", 90, 0), 1e-12);
+        assertEquals(45.0, ConstantEvaluator.op("atan", 1, 0), 1e-12);
+        assertEquals(-6.0, ConstantEvaluator.op("not", 5, 0));
+
+        // not pure, or computed in single precision by the processor
+        assertNull(ConstantEvaluator.op("rand", 1, 0));
+        assertNull(ConstantEvaluator.op("noise", 1, 2));
+        assertNull(ConstantEvaluator.op("len", 3, 4));
+    }
+
+    @Test
+    void evaluate() {
+        Map<String, Double> variables = new HashMap<>();
+        variables.put("bp", 0.0);
+        variables.put("n", 3.0);
+
+        // loops, jumps and the stack
+        Map<String, Double> result = ConstantEvaluator.evaluate(genList(
+                "set f 1",
+                "label loop",
+                "jump done lessThanEq n 1",
+                "write n bank1 bp",
+                "op add bp bp 1",
+                "op mul f f n",
+                "op sub bp bp 1",
+                "read n bank1 bp",
+                "op sub n n 1",
+                "jump loop always null null",
+                "label done"
+        ), variables, "bank1");
+        assertEquals(6.0, result.get("f"));
+        assertEquals(1.0, result.get("n"));
+        assertEquals(0.0, result.get("bp"));
+
+        // reads of unknown variables, side effects and other banks can't be evaluated
+        assertNull(ConstantEvaluator.evaluate(genList("op add a x 1"), variables, "bank1"));
+        assertNull(ConstantEvaluator.evaluate(genList("sensor a s @enabled"), variables, "bank1"));
+        assertNull(ConstantEvaluator.evaluate(genList("print n"), variables, "bank1"));
+        assertNull(ConstantEvaluator.evaluate(genList("write n bank2 0"), variables, "bank1"));
+        assertNull(ConstantEvaluator.evaluate(genList("read a bank1 bp"), variables, "bank1"));
+        assertNull(ConstantEvaluator.evaluate(genList("op div a n 0"), variables, "bank1"));
+
+        // nor can code that doesn't finish
+        assertNull(ConstantEvaluator.evaluate(genList("label loop", "jump loop always null null"), variables, "bank1"));
+    }
+}
@@ -0,0 +1,115 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ControlFlowGraphTest {
+
+    private List<String> genList(String... instructions) {
+        return Arrays.asList(instructions.clone());
+    }
+
+    @Test
+    void blocks() {
+        List<String> code = genList(
+                "set x 1",
+                "label .whileLbl0",
+                "label extra",
+                "op lessThan eax x 10",
+                "jump .contLbl0 equal eax 0",
+                "op add x x 1",
+                "jump .whileLbl0 always null null",
+                "label .contLbl0",
+                "end"
+        );
+        ControlFlowGraph graph = new ControlFlowGraph(code);
+        List<ControlFlowGraph.Block> blocks = graph.getBlocks();
+
+        assertEquals(4, blocks.size());
+        assertEquals(genList(".whileLbl0", "extra"), blocks.get(1).getLabels());
+        assertEquals(1, blocks.get(1).getStart());
+        assertEquals(5, blocks.get(1).getEnd());
+        assertSame(blocks.get(1), graph.getBlock("extra"));
+
+        assertEquals(Arrays.asList(blocks.get(1)), blocks.get(0).getSuccessors());
+        assertEquals(Arrays.asList(blocks.get(3), blocks.get(2)), blocks.get(1).getSuccessors());
+        assertEquals(Arrays.asList(blocks.get(1)), blocks.get(2).getSuccessors());
+        assertTrue(blocks.get(3).getSuccessors().isEmpty());
+        assertEquals(Arrays.asList(blocks.get(0), blocks.get(2)), blocks.get(1).getPredecessors());
+    }
+
+    @Test
+    void calls() {
+        List<String> code = genList(
+                "set a 1",
+                "op add retAddr @counter 1",
+                "jump .funcLblf always null null",
+                "print eax",
+                "end",
+                "label .funcLblf",
+                "op mul eax a 2",
+                "set @counter retAddr",
+                "label .taskStub0",
+                "set @counter pc_a"
+        );
+        ControlFlowGraph graph = new ControlFlowGraph(code);
+        List<ControlFlowGraph.Block> blocks = graph.getBlocks();
+
+        // a call goes on at the next line and a return ends its block
+        assertEquals(4, blocks.size());
+        assertSame(graph.getBlock(".funcLblf"), blocks.get(0).getCallee());
+        assertEquals(Arrays.asList(blocks.get(1)), blocks.get(0).getSuccessors());
+        assertTrue(blocks.get(2).getSuccessors().isEmpty());
+        assertTrue(blocks.get(2).getPredecessors().isEmpty());
+        assertNull(blocks.get(3).getCallee());
+        assertTrue(graph.dominates(blocks.get(2), blocks.get(2)));
+        assertFalse(graph.dominates(blocks.get(0), blocks.get(2)));
+
+        // the callee reads a and its return address, and the line after the call reads eax
+        assertEquals(Set.of("a", "retAddr", "eax"), graph.getLiveOut(blocks.get(0)));
+    }
+
+    @Test
+    void loops() {
+        List<String> code = genList(
+                "set i 0",
+                "label .whileLbl0",
+                "jump .contLbl0 greaterThanEq i 10",
+                "set j 0",
+                "label .whileLbl1",
+                "jump .contLbl1 greaterThanEq j i",
+                "op add j j 1",
+                "jump .whileLbl1 always null null",
+                "label .contLbl1",
+                "op add i i 1",
+                "jump .whileLbl0 always null null",
+                "label .contLbl0",
+                "print i",
+                "end"
+        );
+        ControlFlowGraph graph = new ControlFlowGraph(code);
+        List<ControlFlowGraph.Block> blocks = graph.getBlocks();
+
+        assertTrue(graph.dominates(blocks.get(1), blocks.get(5)));
+        assertTrue(graph.dominates(blocks.get(3), blocks.get(5)));
+        assertFalse(graph.dominates(blocks.get(4), blocks.get(5)));
+
+        List<ControlFlowGraph.Loop> loops = graph.getLoops();
+        assertEquals(2, loops.size());
+        ControlFlowGraph.Loop inner = loops.get(0);
+        ControlFlowGraph.Loop outer = loops.get(1);
+        assertSame(graph.getBlock(".whileLbl1"), inner.getHeader());
+        assertSame(graph.getBlock(".whileLbl0"), outer.getHeader());
+        assertEquals(2, inner.getBlocks().size());
+        assertEquals(5, outer.getBlocks().size());
+        assertSame(outer, inner.getParent());
+        assertEquals(Arrays.asList(inner), outer.getChildren());
+
+        assertEquals(Set.of("i"), graph.getLiveIn(graph.getBlock(".whileLbl0")));
+        assertEquals(Set.of("i", "j"), graph.getLiveIn(graph.getBlock(".whileLbl1")));
+        assertEquals(Set.of(), graph.getLiveOut(blocks.get(6)));
+    }
+}
@@ -0,0 +1,102 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CostAnalyzerTest {
+
+    private List<String> genList(String... instructions) {
+        return Arrays.asList(instructions.clone());
+    }
+
+    private List<String> compile(String code, boolean optimizeForSize) {
+        MinAsmLexer lexer = new MinAsmLexer(CharStreams.fromString(code));
+        CompileVisitor visitor = new CompileVisitor();
+        visitor.setOptimizeForSize(optimizeForSize);
+        return visitor.visit(new MinAsmParser(new CommonTokenStream(lexer)).program());
+    }
+
+    private final List<String> code = genList(
+            "set i 0",
+            "label .whileLbl0",
+            "jump .contLbl0 greaterThanEq i 10",
+            "jump .ifLbl1 equal i 5",
+            "print i",
+            "print \" \"",
+            "printflush message1",
+            "label .ifLbl1",
+            "op add i i 1",
+            "jump .whileLbl0 always null null",
+            "label .contLbl0",
+            "end"
+    );
+
+    @Test
+    void analyzeLoops() {
+        List<CostAnalyzer.Cost> loops = CostAnalyzer.analyzeLoops(code);
+        assertEquals(1, loops.size());
+
+        CostAnalyzer.Cost loop = loops.get(0);
+        assertEquals("loop at 1 (.whileLbl0)", loop.getName());
+        assertEquals(7, loop.getInstructions());
+        assertEquals(7, loop.getWorstPath());
+        assertEquals(3.5, loop.ticks(CostAnalyzer.MICRO_RATE));
+        assertEquals("loop at 1 (.whileLbl0): 7 instructions, worst path 7 (micro 3.50, logic 0.88, hyper 0.28 ticks)",
+                loop.toString());
+    }
+
+    @Test
+    void analyzeProgram() {
+        CostAnalyzer.Cost program = CostAnalyzer.analyzeProgram(code);
+        assertEquals(9, program.getInstructions());
+        // entry, the loop once through the print, then the exit
+        assertEquals(9, program.getWorstPath());
+
+        CostAnalyzer.Cost function = CostAnalyzer.analyzeFunction("f", genList(
+                "jump .ifLbl0 equal a 0",
+                "set b 1",
+                "set c 2",
+                "label .ifLbl0"));
+        assertEquals("function f", function.getName());
+        assertEquals(3, function.getWorstPath());
+    }
+
+    @Test
+    void calls() {
+        // -Os makes f a subroutine of 6 instructions, which each of the three calls runs before going on
+        List<String> subroutines = compile("function f(a) { b = a * 2 + 1; c = b * b - a; return c / 3; }\n"
+                + "i = 0; while (i < 10) { x = f(i); y = f(x); z = f(y); i = i + 1; } print z;", true);
+        assertTrue(subroutines.contains("set @counter retAddr"));
+
+        List<CostAnalyzer.Cost> loops = CostAnalyzer.analyzeLoops(subroutines);
+        assertEquals(1, loops.size());
+        assertEquals(16, loops.get(0).getInstructions());
+        assertEquals(16 + 3 * 6, loops.get(0).getWorstPath());
+        assertThrows(RuntimeException.class, () -> CostAnalyzer.checkBudget(loops, 33));
+        // setup, the loop once through and the print after it
+        assertEquals(6 + 34 + 3, CostAnalyzer.analyzeProgram(subroutines).getWorstPath());
+
+        // every task loop, with the stub its yield runs
+        List<String> tasks = compile("task a { while (1) { x = x + 1; } } task b { while (1) { y = y + 2; print y; } }", false);
+        List<String> names = new ArrayList<>();
+        for (CostAnalyzer.Cost loop : CostAnalyzer.analyzeLoops(tasks)) {
+            names.add(loop.getName() + " " + loop.getWorstPath());
+        }
+        assertEquals(genList("loop at 12 (.contLbl1) 4", "loop at 24 (.contLbl3) 4",
+                "loop at 7 (.whileLbl1) 6", "loop at 17 (.whileLbl3) 8"), names);
+    }
+
+    @Test
+    void checkBudget() {
+        List<CostAnalyzer.Cost> loops = CostAnalyzer.analyzeLoops(code);
+        CostAnalyzer.checkBudget(loops, 7);
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> CostAnalyzer.checkBudget(loops, 6));
+        assertEquals("loop at 1 (.whileLbl0) takes 7 instructions per iteration, over the budget of 6", e.getMessage());
+    }
+}
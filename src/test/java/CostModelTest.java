@@ -0,0 +1,67 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CostModelTest {
+
+    // a five instruction sequence repeated between prints, as inlined calls leave it
+    private List<String> repeated(int copies) {
+        List<String> code = new ArrayList<>();
+        for (int i = 0; i < copies; i++) {
+            code.add("set a " + i);
+            code.add("op add b a 1");
+            code.add("op mul b b 2");
+            code.add("op sub c b a");
+            code.add("op div c c 3");
+            code.add("write c bank2 0");
+        }
+        code.add("end");
+        return code;
+    }
+
+    @Test
+    void subroutineSavings() {
+        assertEquals(-2, CostModel.subroutineSavings(2, 3));
+        assertEquals(3, CostModel.subroutineSavings(4, 4));
+    }
+
+    @Test
+    void rates() {
+        CostModel micro = new CostModel(TargetProfile.parse("micro"));
+        CostModel hyper = new CostModel(TargetProfile.parse("hyper"));
+        assertEquals(5.0, micro.ticks(10));
+        assertEquals(0.4, hyper.ticks(10));
+
+        // a turn takes the same time on each processor
+        assertEquals(50, new CostModel(TargetProfile.defaults()).taskSlice());
+        assertEquals(12, micro.taskSlice());
+        assertEquals(156, hyper.taskSlice());
+    }
+
+    @Test
+    void fit() {
+        List<String> code = repeated(6);
+        assertEquals(37, SizeOptimizer.size(code));
+
+        // already fits
+        CostModel model = new CostModel(TargetProfile.parse("logic,limit=40"));
+        assertSame(code, model.fit(code));
+
+        // outlining the whole sequence is enough, and nothing smaller is outlined after it
+        model = new CostModel(TargetProfile.parse("logic,limit=30"));
+        List<String> fitted = model.fit(code);
+        assertEquals(SizeOptimizer.outline(code), fitted);
+        assertTrue(model.fits(fitted));
+
+        model = new CostModel(TargetProfile.parse("micro,limit=10"));
+        assertFalse(model.fits(model.fit(code)));
+        RuntimeException e = assertThrows(RuntimeException.class, () -> new CostModel(TargetProfile.parse("micro,limit=10")).checkLimit(37));
+        assertEquals("program takes 37 instructions, over the limit of 10 for a micro processor", e.getMessage());
+
+        // without a target nothing is checked
+        new CostModel(TargetProfile.defaults()).checkLimit(5000);
+    }
+}
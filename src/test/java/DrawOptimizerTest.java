@@ -0,0 +1,179 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DrawOptimizerTest {
+
+    private void checkResults(List<String> expected, List<String> actual) {
+        StringBuilder expectedSer = new StringBuilder("\n");
+        StringBuilder actualSer = new StringBuilder("\n");
+
+        for (String s : expected) {
+            expectedSer.append("\t").append(s).append("\n");
+        }
+
+        for (String s : actual) {
+            actualSer.append("\t").append(s).append("\n");
+        }
+
+        assertEquals(expectedSer.toString(), actualSer.toString());
+    }
+
+    private List<String> genList(String... instructions) {
+        return Arrays.asList(instructions.clone());
+    }
+
+    @Test
+    void removeRedundantState() {
+        List<String> code, actual, expected;
+
+        // repeated constant state test
+        code = genList(
+                "draw color 255 0 0 255 0 0",
+                "draw rect 0 0 5 5 0 0",
+                "draw color 255 0 0 255 0 0",
+                "draw stroke 2 0 0 0 0 0",
+                "draw line 0 0 5 5 0 0",
+                "draw stroke 2 0 0 0 0 0",
+                "draw color 0 255 0 255 0 0",
+                "draw rect 5 5 5 5 0 0"
+        );
+        expected = genList(
+                "draw color 255 0 0 255 0 0",
+                "draw rect 0 0 5 5 0 0",
+                "draw stroke 2 0 0 0 0 0",
+                "draw line 0 0 5 5 0 0",
+                "draw color 0 255 0 255 0 0",
+                "draw rect 5 5 5 5 0 0"
+        );
+        actual = DrawOptimizer.removeRedundantState(code);
+        checkResults(expected, actual);
+
+        // state is forgotten at labels, flushes and variable writes
+        code = genList(
+                "draw color r 0 0 255 0 0",
+                "draw color r 0 0 255 0 0",
+                "op add r r 1",
+                "draw color r 0 0 255 0 0",
+                "label loop",
+                "draw color r 0 0 255 0 0",
+                "drawflush display1",
+                "draw color r 0 0 255 0 0"
+        );
+        expected = genList(
+                "draw color r 0 0 255 0 0",
+                "op add r r 1",
+                "draw color r 0 0 255 0 0",
+                "label loop",
+                "draw color r 0 0 255 0 0",
+                "drawflush display1",
+                "draw color r 0 0 255 0 0"
+        );
+        actual = DrawOptimizer.removeRedundantState(code);
+        checkResults(expected, actual);
+
+        // a yield or subroutine call comes back after other code drew, with no label to say so
+        code = genList(
+                "draw color 255 0 0 255 0 0",
+                "op add pc_a @counter 1",
+                "jump .taskStub1 always null null",
+                "draw color 255 0 0 255 0 0",
+                "op add retAddr @counter 1",
+                "jump .outLbl0 always null null",
+                "draw color 255 0 0 255 0 0",
+                "draw color 255 0 0 255 0 0"
+        );
+        expected = genList(
+                "draw color 255 0 0 255 0 0",
+                "op add pc_a @counter 1",
+                "jump .taskStub1 always null null",
+                "draw color 255 0 0 255 0 0",
+                "op add retAddr @counter 1",
+                "jump .outLbl0 always null null",
+                "draw color 255 0 0 255 0 0"
+        );
+        actual = DrawOptimizer.removeRedundantState(code);
+        checkResults(expected, actual);
+    }
+
+    @Test
+    void insertFlushes() {
+        List<String> code, actual, expected;
+
+        // overflowing straight line test
+        code = new ArrayList<>();
+        expected = new ArrayList<>();
+        for (int i = 0; i < DrawOptimizer.GRAPHICS_BUFFER_LIMIT + 1; i++) {
+            code.add("draw rect " + i + " 0 1 1 0 0");
+            if (i == DrawOptimizer.GRAPHICS_BUFFER_LIMIT) {
+                expected.add("drawflush display2");
+            }
+            expected.add("draw rect " + i + " 0 1 1 0 0");
+        }
+        code.add("drawflush display2");
+        expected.add("drawflush display2");
+        actual = DrawOptimizer.insertFlushes(code);
+        checkResults(expected, actual);
+
+        // forward branch counts merge at labels
+        code = new ArrayList<>();
+        expected = new ArrayList<>();
+        for (int i = 0; i < DrawOptimizer.GRAPHICS_BUFFER_LIMIT; i++) {
+            code.add("draw rect " + i + " 0 1 1 0 0");
+            expected.add("draw rect " + i + " 0 1 1 0 0");
+        }
+        code.addAll(genList(
+                "jump skip equal a 0",
+                "drawflush display1",
+                "label skip",
+                "draw rect 0 0 1 1 0 0"));
+        expected.addAll(genList(
+                "jump skip equal a 0",
+                "drawflush display1",
+                "label skip",
+                "drawflush display1",
+                "draw rect 0 0 1 1 0 0"));
+        actual = DrawOptimizer.insertFlushes(code);
+        checkResults(expected, actual);
+
+        // a loop that draws flushes before jumping back, so its iterations can't fill the buffer
+        code = genList(
+                "draw clear 0 0 0",
+                "set i 0",
+                "label top",
+                "draw rect i 0 1 1 0 0",
+                "op add i i 1",
+                "jump top lessThan i 1000",
+                "label idle",
+                "jump idle always null null");
+        expected = genList(
+                "draw clear 0 0 0",
+                "set i 0",
+                "label top",
+                "draw rect i 0 1 1 0 0",
+                "op add i i 1",
+                "drawflush display2",
+                "jump top lessThan i 1000",
+                "label idle",
+                "jump idle always null null");
+        actual = DrawOptimizer.insertFlushes(code, "display2");
+        checkResults(expected, actual);
+
+        // a loop that flushes itself, or doesn't draw, is left alone
+        code = genList(
+                "draw clear 0 0 0",
+                "label top",
+                "sensor x switch1 @enabled",
+                "jump top equal x 0",
+                "label frame",
+                "draw rect x 0 1 1 0 0",
+                "drawflush display1",
+                "jump frame always null null");
+        actual = DrawOptimizer.insertFlushes(code);
+        checkResults(code, actual);
+    }
+}
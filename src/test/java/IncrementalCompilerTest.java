@@ -0,0 +1,106 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IncrementalCompilerTest {
+
+    private List<String> compile(String code, IncrementalCompiler incremental, boolean optimizeForSize) {
+        MinAsmLexer lexer = new MinAsmLexer(CharStreams.fromString(code));
+        CompileVisitor visitor = new CompileVisitor();
+        visitor.setIncremental(incremental);
+        visitor.setOptimizeForSize(optimizeForSize);
+        return visitor.visit(new MinAsmParser(new CommonTokenStream(lexer)).program());
+    }
+
+    private String program(int step, int limit) {
+        return "channel c(bank2, 4);\n"
+                + "function step(a) { return a + " + step + "; }\n"
+                + "function clamp(a) { if (a > " + limit + ") { a = " + limit + "; } return a; }\n"
+                + "function next(a) { return clamp(step(a)); }\n"
+                + "x = next(x); print x;\n"
+                + "y = clamp(y); send(c, y);\n"
+                + "while (x < 10) { x = next(x); }\n"
+                + "@lut(bank3, 0, 7) function half(v) { return v / 2; } z = half(y);\n";
+    }
+
+    @Test
+    void chunks() {
+        for (boolean optimizeForSize : List.of(false, true)) {
+            IncrementalCompiler incremental = new IncrementalCompiler();
+            assertEquals(compile(program(1, 5), null, optimizeForSize), compile(program(1, 5), incremental, optimizeForSize));
+            assertEquals(0, incremental.getReused());
+
+            // nothing changed
+            incremental.reset();
+            assertEquals(compile(program(1, 5), null, optimizeForSize), compile(program(1, 5), incremental, optimizeForSize));
+            assertEquals(0, incremental.getCompiled());
+
+            // step and next, which inlines it, and the code calling next
+            incremental.reset();
+            assertEquals(compile(program(2, 5), null, optimizeForSize), compile(program(2, 5), incremental, optimizeForSize));
+            assertEquals(3, incremental.getCompiled());
+
+            // clamp, next and the code calling either, but not step
+            incremental.reset();
+            assertEquals(compile(program(2, 9), null, optimizeForSize), compile(program(2, 9), incremental, optimizeForSize));
+            assertEquals(3, incremental.getCompiled());
+        }
+
+        // a new statement before them moves every chunk after it
+        IncrementalCompiler incremental = new IncrementalCompiler();
+        compile(program(1, 5), incremental, false);
+        incremental.reset();
+        assertEquals(compile("function f() {}\n" + program(1, 5), null, false),
+                compile("function f() {}\n" + program(1, 5), incremental, false));
+
+        // the same tokens spaced differently can be a different statement
+        incremental = new IncrementalCompiler();
+        compile("function f() { return a; } b = f();", incremental, false);
+        assertEquals(compile("function f() { returna; } b = f();", null, false),
+                compile("function f() { returna; } b = f();", incremental, false));
+    }
+
+    @Test
+    void fixLabels() {
+        IncrementalCompiler incremental = new IncrementalCompiler();
+        List<String> code = new ArrayList<>(List.of(
+                "set a 1",
+                "label top",
+                "jump end equal a 3",
+                "op add a a 1",
+                "jump top always null null",
+                "label end",
+                "jump mid always null null",
+                "label mid",
+                "end"));
+        assertEquals(LabelFixer.fixLabels(code), incremental.fixLabels(code));
+
+        // moves end and mid but not top, and the jump to end comes before the change
+        code.add(3, "op mul a a 2");
+        assertEquals(LabelFixer.fixLabels(code), incremental.fixLabels(code));
+
+        code.remove(0);
+        assertEquals(LabelFixer.fixLabels(code), incremental.fixLabels(code));
+
+        code.set(code.size() - 1, "jump top always null null");
+        assertEquals(LabelFixer.fixLabels(code), incremental.fixLabels(code));
+
+        // a label defined twice resolves to the later definition, and the earlier comes back when that's removed
+        code.add("label top");
+        code.add("end");
+        assertEquals(LabelFixer.fixLabels(code), incremental.fixLabels(code));
+        code.subList(code.size() - 2, code.size()).clear();
+        assertEquals(LabelFixer.fixLabels(code), incremental.fixLabels(code));
+
+        List<String> broken = new ArrayList<>(code);
+        broken.remove("label mid");
+        RuntimeException e = assertThrows(RuntimeException.class, () -> incremental.fixLabels(broken));
+        assertEquals("invalid jump to label 'mid'", e.getMessage());
+        assertEquals(LabelFixer.fixLabels(code), incremental.fixLabels(code));
+    }
+}
@@ -0,0 +1,77 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InstructionTest {
+
+    private List<String> genList(String... tokens) {
+        return Arrays.asList(tokens.clone());
+    }
+
+    @Test
+    void parse() {
+        Instruction instruction = Instruction.parse("print  \"a  b\"");
+        assertEquals("print", instruction.getOpcode());
+        assertEquals(genList("\"a  b\""), instruction.getArgs());
+        assertEquals("null", instruction.arg(3));
+        assertEquals("print \"a  b\"", instruction.toString());
+
+        assertEquals("print", Instruction.opcode("print  \"a  b\""));
+        assertEquals("end", Instruction.opcode("  end"));
+    }
+
+    @Test
+    void readsAndWrites() {
+        Instruction op = Instruction.parse("op add x y 1");
+        assertEquals(genList("x"), op.getWrites());
+        assertEquals(genList("y"), op.getReads());
+
+        Instruction radar = Instruction.parse("radar enemy any any distance turret1 1 target");
+        assertEquals(genList("target"), radar.getWrites());
+        assertEquals(genList("turret1"), radar.getReads());
+
+        Instruction getBlock = Instruction.parse("ucontrol getBlock x y type building floor");
+        assertEquals(genList("type", "building", "floor"), getBlock.getWrites());
+        assertEquals(genList("x", "y"), getBlock.getReads());
+
+        Instruction jump = Instruction.parse("jump done lessThan i n");
+        assertEquals(genList(), jump.getWrites());
+        assertEquals(genList("i", "n"), jump.getReads());
+
+        Instruction select = Instruction.parse("select r lessThan a b x 0");
+        assertEquals(genList("r"), select.getWrites());
+        assertEquals(genList("a", "b", "x"), select.getReads());
+
+        Instruction unpack = Instruction.parse("unpackcolor r g b a c");
+        assertEquals(genList("r", "g", "b", "a"), unpack.getWrites());
+        assertEquals(genList("c"), unpack.getReads());
+
+        Instruction spawn = Instruction.parse("spawn @dagger x y 0 @sharded result");
+        assertEquals(genList("result"), spawn.getWrites());
+        assertEquals(genList("x", "y"), spawn.getReads());
+
+        Instruction unknown = Instruction.parse("sync v");
+        assertNull(unknown.getWrites());
+        assertNull(unknown.getReads());
+    }
+
+    @Test
+    void validate() {
+        Instruction.parse("jump done always").validate();
+        Instruction.parse("op abs x y").validate();
+        Instruction.parse("draw clear 0 0 0").validate();
+
+        Instruction.parse("unpackcolor r g b a c").validate();
+        Instruction.parse("getblock building b x y").validate();
+        // unknown opcodes are kept as they are
+        Instruction.parse("sync v").validate();
+        Instruction.parse("spin x").validate();
+
+        assertThrows(RuntimeException.class, () -> Instruction.parse("spawn @dagger x y 0 @sharded").validate());
+        assertThrows(RuntimeException.class, () -> Instruction.parse("set x").validate());
+        assertThrows(RuntimeException.class, () -> Instruction.parse("end now").validate());
+    }
+}
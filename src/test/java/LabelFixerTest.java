@@ -1,6 +1,7 @@
 import org.junit.jupiter.api.Test;
 
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -104,4 +105,28 @@ class LabelFixerTest {
         actual = LabelFixer.fixLabels(code);
         checkResults(expected, actual);
     }
-}
\ No newline at end of file
+
+    @Test
+    void relocateLabels() {
+        List<String> code, actual, expected;
+
+        code = genList(
+                "label .ifLbl0",
+                "jump .ifLbl0 equal a 0",
+                "jump end always null null",
+                "set a 1"
+        );
+        expected = genList(
+                "label .ifLbl0.3",
+                "jump .ifLbl0.3 equal a 0",
+                "jump end always null null",
+                "set a 1"
+        );
+        actual = LabelFixer.relocateLabels(code, ".3");
+        checkResults(expected, actual);
+
+        assertEquals(new HashSet<>(genList("end")), LabelFixer.unresolvedLabels(code));
+        assertEquals(".ifLbl0", LabelFixer.jumpLabel(code.get(1)));
+        assertNull(LabelFixer.jumpLabel(code.get(3)));
+    }
+}
@@ -0,0 +1,125 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoopOptimizerTest {
+
+    private void checkResults(List<String> expected, List<String> actual) {
+        StringBuilder expectedSer = new StringBuilder("\n");
+        StringBuilder actualSer = new StringBuilder("\n");
+
+        for (String s : expected) {
+            expectedSer.append("\t").append(s).append("\n");
+        }
+
+        for (String s : actual) {
+            actualSer.append("\t").append(s).append("\n");
+        }
+
+        assertEquals(expectedSer.toString(), actualSer.toString());
+    }
+
+    private List<String> genList(String... instructions) {
+        return Arrays.asList(instructions.clone());
+    }
+
+    @Test
+    void hoistInvariants() {
+        List<String> code, expected;
+
+        // address computation and stable sensor move out, the loop counter stays
+        code = genList(
+                "set i 0",
+                "label .whileLbl0",
+                "jump .contLbl0 greaterThanEq i 10",
+                "sensor on switch1 @enabled",
+                "op mul base row 8",
+                "op add addr base 2",
+                "read v bank2 addr",
+                "op add i i v",
+                "jump .whileLbl0 always null null",
+                "label .contLbl0",
+                "end"
+        );
+        expected = genList(
+                "set i 0",
+                "sensor on switch1 @enabled",
+                "op mul base row 8",
+                "op add addr base 2",
+                "label .whileLbl0",
+                "jump .contLbl0 greaterThanEq i 10",
+                "read v bank2 addr",
+                "op add i i v",
+                "jump .whileLbl0 always null null",
+                "label .contLbl0",
+                "end"
+        );
+        checkResults(expected, LoopOptimizer.hoistInvariants(code, Set.of("switch1 @enabled")));
+
+        // sensors not declared stable, rand, @time and values used after the loop stay
+        code = genList(
+                "label .whileLbl0",
+                "jump .contLbl0 equal i 0",
+                "sensor on switch1 @enabled",
+                "op rand r 10 null",
+                "op sub dt @time 5",
+                "op mul x y 2",
+                "jump .whileLbl0 always null null",
+                "label .contLbl0",
+                "print x",
+                "end"
+        );
+        checkResults(code, LoopOptimizer.hoistInvariants(code, Set.of()));
+
+        // a temporary written twice in the loop stays
+        code = genList(
+                "label .whileLbl0",
+                "op lessThan eax i 10",
+                "jump .contLbl0 equal eax 0",
+                "op mul eax y 2",
+                "op add i i eax",
+                "jump .whileLbl0 always null null",
+                "label .contLbl0",
+                "end"
+        );
+        checkResults(code, LoopOptimizer.hoistInvariants(code, Set.of()));
+
+        // a rotated loop hoists in front of the jump into its condition
+        code = genList(
+                "jump .whileLbl0 always null null",
+                "label .bodyLbl0",
+                "op mul t y 2",
+                "op add i i t",
+                "label .whileLbl0",
+                "jump .bodyLbl0 lessThan i 10",
+                "end"
+        );
+        expected = genList(
+                "op mul t y 2",
+                "jump .whileLbl0 always null null",
+                "label .bodyLbl0",
+                "op add i i t",
+                "label .whileLbl0",
+                "jump .bodyLbl0 lessThan i 10",
+                "end"
+        );
+        checkResults(expected, LoopOptimizer.hoistInvariants(code, Set.of()));
+
+        // nothing moves across subroutine calls
+        code = genList(
+                "label .whileLbl0",
+                "op mul t y 2",
+                "op add retAddr @counter 1",
+                "jump .outLbl0 always null null",
+                "jump .whileLbl0 always null null",
+                "end",
+                "label .outLbl0",
+                "set @counter retAddr"
+        );
+        checkResults(code, LoopOptimizer.hoistInvariants(code, Set.of()));
+    }
+}
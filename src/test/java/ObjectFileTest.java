@@ -0,0 +1,40 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ObjectFileTest {
+
+    private List<String> genList(String... instructions) {
+        return Arrays.asList(instructions.clone());
+    }
+
+    @Test
+    void serialize() {
+        Map<String, List<String>> symbols = new LinkedHashMap<>();
+        symbols.put("clamp", genList(
+                "jump .ifLbl0 lessThan x 10",
+                "set x 10",
+                "label .ifLbl0"));
+        symbols.put("stop", genList("jump halt always null null"));
+        ObjectFile object = new ObjectFile(symbols);
+
+        List<String> expected = genList(
+                "symbol clamp",
+                "    jump .ifLbl0 lessThan x 10",
+                "    set x 10",
+                "    label .ifLbl0",
+                "symbol stop",
+                "    jump halt always null null",
+                "extern halt");
+        assertEquals(expected, object.serialize());
+
+        ObjectFile read = ObjectFile.deserialize(object.serialize());
+        assertEquals(symbols, read.getSymbols());
+        assertEquals(genList("halt"), List.copyOf(read.getExterns()));
+    }
+}
@@ -0,0 +1,76 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelCompilerTest {
+
+    private MinAsmParser.ProgramContext parse(String code) {
+        MinAsmLexer lexer = new MinAsmLexer(CharStreams.fromString(code));
+        return new MinAsmParser(new CommonTokenStream(lexer)).program();
+    }
+
+    private List<String> compile(String code, int jobs, boolean optimizeForSize) {
+        CompileVisitor visitor = new CompileVisitor();
+        visitor.setJobs(jobs);
+        visitor.setOptimizeForSize(optimizeForSize);
+        return visitor.visit(parse(code));
+    }
+
+    @Test
+    void partition() {
+        List<List<MinAsmParser.StmtContext>> chunks = ParallelCompiler.partition(
+                parse("a = 1; function f() { b = 2; } c = 3; print c; function g() {} d = 4;").stmt());
+
+        // the print's flush stays with the declaration after it
+        assertEquals(4, chunks.size());
+        assertEquals("a=1;", chunks.get(0).get(0).getText());
+        assertNotNull(chunks.get(1).get(0).function());
+        assertEquals(3, chunks.get(2).size());
+        assertEquals("d=4;", chunks.get(3).get(0).getText());
+
+        assertTrue(ParallelCompiler.canPartition(parse("function f() {} channel c(bank2, 4);")));
+        assertFalse(ParallelCompiler.canPartition(parse("if (a) { function f() {} }")));
+    }
+
+    @Test
+    void renumber() {
+        List<String> instructions = List.of(
+                "label .ifLbl" + ParallelCompiler.placeholder(1, 2) + "." + ParallelCompiler.placeholder(0, 0),
+                "jump .whileLbl" + ParallelCompiler.placeholder(0, 3) + " always null null",
+                "set a 1");
+        assertEquals(List.of("label .ifLbl12.5", "jump .whileLbl8 always null null", "set a 1"),
+                ParallelCompiler.renumber(instructions, new int[]{5, 10}));
+    }
+
+    @Test
+    void compile() {
+        StringBuilder code = new StringBuilder("channel c(bank2, 4); stable #s.x;\n");
+        for (int i = 0; i < 30; i++) {
+            code.append(String.format("function f%d(a, b) { if (a > b) { t = a; } else { t = b; } ", i));
+            if (i > 0) {
+                code.append(String.format("t += f%d(t, 1); ", i - 1));
+            }
+            code.append("while (t > 100) { t -= 7; } return t; }\n");
+            for (int j = 0; j < 20; j++) {
+                code.append(String.format("x%d = f%d(y, %d); print \"x\", x%d; ", j, i, j, j));
+                code.append(String.format("if (x%d && #s.x) { send(c, x%d); } z = f%d(3, %d);\n", j, j, i, j));
+            }
+        }
+        code.append("@lut(bank2, 0, 9) function sq(v) { return v * v; } u = sq(k);\n");
+        code.append("task a { x += sq(z); yield(); } task b(20) { print 1; printflush(); }\n");
+
+        assertEquals(compile(code.toString(), 1, false), compile(code.toString(), 4, false));
+        assertEquals(compile(code.toString(), 1, true), compile(code.toString(), 4, true));
+    }
+
+    @Test
+    void errors() {
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> compile("function f() {} a = 1; function g() {} b = f(1);", 4, false));
+        assertEquals("f takes 0 arguments", e.getMessage());
+    }
+}
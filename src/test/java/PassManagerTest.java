@@ -0,0 +1,87 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PassManagerTest {
+
+    private List<String> genList(String... instructions) {
+        return Arrays.asList(instructions.clone());
+    }
+
+    // drops the first instruction each run until two are left
+    private Pass shrink(int[] runs) {
+        return new Pass() {
+            @Override
+            public String getName() {
+                return "shrink";
+            }
+
+            @Override
+            public List<String> run(List<String> instructions) {
+                runs[0]++;
+                return instructions.size() > 2 ? new ArrayList<>(instructions.subList(1, instructions.size())) : instructions;
+            }
+        };
+    }
+
+    @Test
+    void addPipeline() {
+        PassManager passManager = new PassManager();
+        passManager.addPipeline(PassManager.preset("-Os"));
+        assertEquals(genList("draw", "licm", "tails*", "outline"), passManager.getPassNames());
+
+        passManager = new PassManager();
+        passManager.addPipeline(PassManager.preset("-O0"));
+        assertEquals(genList(), passManager.getPassNames());
+
+        assertThrows(RuntimeException.class, () -> new PassManager().addPipeline("draw,nothing"));
+        assertThrows(RuntimeException.class, () -> PassManager.preset("-O9"));
+    }
+
+    @Test
+    void run() throws IOException {
+        List<String> code = genList("set a 1", "set a 2", "set a 3", "set a 4", "end");
+
+        // once
+        int[] runs = {0};
+        PassManager passManager = new PassManager();
+        passManager.add(shrink(runs), false);
+        CompileStats stats = new CompileStats("x");
+        assertEquals(genList("set a 2", "set a 3", "set a 4", "end"), passManager.run(code, stats));
+        assertEquals(1, runs[0]);
+        assertEquals(1, stats.getPhases().get(0).getInstructionsRemoved());
+
+        // until nothing changes, which takes one extra run to notice
+        runs[0] = 0;
+        passManager = new PassManager();
+        passManager.add(shrink(runs), true);
+        stats = new CompileStats("x");
+        assertEquals(genList("set a 4", "end"), passManager.run(code, stats));
+        assertEquals(4, runs[0]);
+        assertEquals(3, stats.getPhases().get(0).getInstructionsRemoved());
+
+        // a pass that breaks a jump is caught
+        PassManager broken = new PassManager();
+        broken.add(shrink(new int[1]), false);
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> broken.run(genList("label x", "set a 1", "jump x always null null"), new CompileStats("x")));
+        assertEquals("invalid jump to label 'x' after shrink", e.getMessage());
+
+        // fit leaves a program alone until it is over the target's limit
+        List<String> repeated = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            repeated.addAll(genList("set a " + i, "op add b a 1", "op mul b b 2", "op sub c b a", "print c"));
+        }
+        repeated.add("end");
+        passManager = new PassManager();
+        passManager.addPipeline("fit");
+        assertEquals(repeated, passManager.run(repeated, new CompileStats("x")));
+        passManager.setCostModel(new CostModel(TargetProfile.parse("logic,limit=20")));
+        assertEquals(SizeOptimizer.outline(repeated), passManager.run(repeated, new CompileStats("x")));
+    }
+}
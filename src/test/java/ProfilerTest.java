@@ -0,0 +1,110 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProfilerTest {
+
+    private void checkResults(List<String> expected, List<String> actual) {
+        StringBuilder expectedSer = new StringBuilder("\n");
+        StringBuilder actualSer = new StringBuilder("\n");
+
+        for (String s : expected) {
+            expectedSer.append("\t").append(s).append("\n");
+        }
+
+        for (String s : actual) {
+            actualSer.append("\t").append(s).append("\n");
+        }
+
+        assertEquals(expectedSer.toString(), actualSer.toString());
+    }
+
+    private List<String> genList(String... instructions) {
+        return Arrays.asList(instructions.clone());
+    }
+
+    @Test
+    void instrument() {
+        List<String> code, actual, expected;
+
+        code = genList(
+                "set x 1",
+                "label .whileLbl0",
+                "op lessThan eax x 10",
+                "jump .contLbl0 equal eax 0",
+                "op add x x 1",
+                "jump .whileLbl0 always null null",
+                "label .contLbl0",
+                "end"
+        );
+        expected = genList(
+                "read pcnt bank2 0",
+                "op add pcnt pcnt 1",
+                "write pcnt bank2 0",
+                "set x 1",
+                "label .whileLbl0",
+                "read pcnt bank2 1",
+                "op add pcnt pcnt 1",
+                "write pcnt bank2 1",
+                "op lessThan eax x 10",
+                "jump .contLbl0 equal eax 0",
+                "read pcnt bank2 2",
+                "op add pcnt pcnt 1",
+                "write pcnt bank2 2",
+                "op add x x 1",
+                "jump .whileLbl0 always null null",
+                "label .contLbl0",
+                "read pcnt bank2 3",
+                "op add pcnt pcnt 1",
+                "write pcnt bank2 3",
+                "end"
+        );
+        Profiler profiler = new Profiler("bank2");
+        actual = profiler.instrument(code);
+        checkResults(expected, actual);
+        checkResults(genList(".entry", ".whileLbl0", ".whileLbl0+1", ".contLbl0"), profiler.getBlockKeys());
+    }
+
+    @Test
+    void checkBank() {
+        Profiler.checkBank("bank2", TargetProfile.defaults(), Map.of("bank3", 8));
+
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> Profiler.checkBank("bank1", TargetProfile.defaults(), Map.of()));
+        assertEquals("profile counters can't use bank1, which holds the stack", e.getMessage());
+
+        e = assertThrows(RuntimeException.class, () -> Profiler.checkBank("bank2", TargetProfile.defaults(), Map.of("bank2", 8)));
+        assertEquals("profile counters can't use bank2, which holds channels or lookup tables", e.getMessage());
+
+        // a cell holds fewer counters than a bank
+        List<String> code = new ArrayList<>();
+        for (int i = 0; i < 70; i++) {
+            code.add("label l" + i);
+            code.add("jump l" + i + " equal x " + i);
+        }
+        e = assertThrows(RuntimeException.class, () -> new Profiler("cell1").instrument(code));
+        assertEquals("too many blocks to profile: 70", e.getMessage());
+    }
+
+    @Test
+    void load() throws IOException {
+        Path blocks = Files.createTempFile("blocks", ".txt");
+        Path counts = Files.createTempFile("counts", ".txt");
+        Files.write(blocks, genList(".entry", ".whileLbl0", ".contLbl0"));
+        Files.write(counts, genList("1", "11.0", ""));
+
+        Profile profile = Profile.load(blocks.toString(), counts.toString());
+        assertEquals(1, profile.count(".entry"));
+        assertEquals(11, profile.count(".whileLbl0"));
+        assertEquals(0, profile.count(".contLbl0"));
+        assertEquals(0, profile.count(".missing"));
+    }
+}
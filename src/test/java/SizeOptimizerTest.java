@@ -0,0 +1,263 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SizeOptimizerTest {
+
+    private void checkResults(List<String> expected, List<String> actual) {
+        StringBuilder expectedSer = new StringBuilder("\n");
+        StringBuilder actualSer = new StringBuilder("\n");
+
+        for (String s : expected) {
+            expectedSer.append("\t").append(s).append("\n");
+        }
+
+        for (String s : actual) {
+            actualSer.append("\t").append(s).append("\n");
+        }
+
+        assertEquals(expectedSer.toString(), actualSer.toString());
+    }
+
+    private List<String> genList(String... instructions) {
+        return Arrays.asList(instructions.clone());
+    }
+
+    @Test
+    void mergeTails() {
+        List<String> code, expected;
+
+        // both branches of an if else end the same way
+        code = genList(
+                "jump .ifLbl0 equal a 0",
+                "set b 1",
+                "print b",
+                "printflush message1",
+                "jump .contLbl1 always null null",
+                "label .ifLbl0",
+                "set b 2",
+                "print b",
+                "printflush message1",
+                "label .contLbl1",
+                "end"
+        );
+        expected = genList(
+                "jump .ifLbl0 equal a 0",
+                "set b 1",
+                "jump .tailLbl0 always null null",
+                "label .ifLbl0",
+                "set b 2",
+                "label .tailLbl0",
+                "print b",
+                "printflush message1",
+                "label .contLbl1",
+                "end"
+        );
+        checkResults(expected, SizeOptimizer.mergeTails(code));
+
+        // the label is not fallen into, so nothing is shared
+        code = genList(
+                "set b 1",
+                "jump .contLbl1 always null null",
+                "set b 1",
+                "end",
+                "label .contLbl1",
+                "end"
+        );
+        checkResults(code, SizeOptimizer.mergeTails(code));
+
+        // labels stop the common tail
+        code = genList(
+                "set a 1",
+                "set b 1",
+                "jump .contLbl1 always null null",
+                "set a 1",
+                "label .ifLbl0",
+                "set b 1",
+                "label .contLbl1",
+                "end"
+        );
+        expected = genList(
+                "set a 1",
+                "jump .tailLbl0 always null null",
+                "set a 1",
+                "label .ifLbl0",
+                "label .tailLbl0",
+                "set b 1",
+                "label .contLbl1",
+                "end"
+        );
+        checkResults(expected, SizeOptimizer.mergeTails(code));
+    }
+
+    @Test
+    void outline() {
+        List<String> code, expected;
+
+        code = genList(
+                "sensor a b @x",
+                "op add a a 1",
+                "op mul a a 2",
+                "write a bank1 0",
+                "print a",
+                "sensor a b @y",
+                "op add a a 1",
+                "op mul a a 2",
+                "write a bank1 0",
+                "print a",
+                "sensor a b @x",
+                "op add a a 1",
+                "op mul a a 2",
+                "write a bank1 0",
+                "print a",
+                "printflush message1"
+        );
+        expected = genList(
+                "sensor a b @x",
+                "op add retAddr @counter 1",
+                "jump .outLbl0 always null null",
+                "sensor a b @y",
+                "op add retAddr @counter 1",
+                "jump .outLbl0 always null null",
+                "sensor a b @x",
+                "op add retAddr @counter 1",
+                "jump .outLbl0 always null null",
+                "printflush message1",
+                "end",
+                "label .outLbl0",
+                "op add a a 1",
+                "op mul a a 2",
+                "write a bank1 0",
+                "print a",
+                "set @counter retAddr"
+        );
+        checkResults(expected, SizeOptimizer.outline(code));
+
+        // two copies of three instructions cost more to call than to keep
+        code = genList(
+                "op add a a 1",
+                "write a bank1 0",
+                "print a",
+                "op add a a 1",
+                "write a bank1 0",
+                "print a",
+                "end"
+        );
+        checkResults(code, SizeOptimizer.outline(code));
+
+        // jumps are never moved out of line
+        code = genList(
+                "label x",
+                "op add a a 1",
+                "jump x lessThan a 10",
+                "op add a a 1",
+                "jump x lessThan a 10",
+                "op add a a 1",
+                "jump x lessThan a 10",
+                "end"
+        );
+        checkResults(code, SizeOptimizer.outline(code));
+
+        // a function body runs with its caller's return address, so only the copies outside it are outlined
+        code = genList(
+                "op add retAddr @counter 1",
+                "jump .funcLblf always null null",
+                "op add x a b",
+                "op mul y c d",
+                "op sub z e g",
+                "op div w h k",
+                "op add x a b",
+                "op mul y c d",
+                "op sub z e g",
+                "op div w h k",
+                "op add x a b",
+                "op mul y c d",
+                "op sub z e g",
+                "op div w h k",
+                "end",
+                "label .funcLblf",
+                "op add x a b",
+                "op mul y c d",
+                "op sub z e g",
+                "op div w h k",
+                "set q 5",
+                "set @counter retAddr"
+        );
+        expected = genList(
+                "op add retAddr @counter 1",
+                "jump .funcLblf always null null",
+                "op add retAddr @counter 1",
+                "jump .outLbl0 always null null",
+                "op add retAddr @counter 1",
+                "jump .outLbl0 always null null",
+                "op add retAddr @counter 1",
+                "jump .outLbl0 always null null",
+                "end",
+                "label .funcLblf",
+                "op add x a b",
+                "op mul y c d",
+                "op sub z e g",
+                "op div w h k",
+                "set q 5",
+                "set @counter retAddr",
+                "label .outLbl0",
+                "op add x a b",
+                "op mul y c d",
+                "op sub z e g",
+                "op div w h k",
+                "set @counter retAddr"
+        );
+        checkResults(expected, SizeOptimizer.outline(code));
+
+        // outlining an outlined program again numbers its subroutines after the ones there
+        code = genList(
+                "op add retAddr @counter 1",
+                "jump .outLbl0 always null null",
+                "sensor a b @x",
+                "write a bank1 0",
+                "print a",
+                "printflush message1",
+                "sensor a b @x",
+                "write a bank1 0",
+                "print a",
+                "printflush message1",
+                "sensor a b @x",
+                "write a bank1 0",
+                "print a",
+                "printflush message1",
+                "end",
+                "label .outLbl0",
+                "set q 5",
+                "set @counter retAddr"
+        );
+        expected = genList(
+                "op add retAddr @counter 1",
+                "jump .outLbl0 always null null",
+                "op add retAddr @counter 1",
+                "jump .outLbl1 always null null",
+                "op add retAddr @counter 1",
+                "jump .outLbl1 always null null",
+                "op add retAddr @counter 1",
+                "jump .outLbl1 always null null",
+                "end",
+                "label .outLbl0",
+                "set q 5",
+                "set @counter retAddr",
+                "label .outLbl1",
+                "sensor a b @x",
+                "write a bank1 0",
+                "print a",
+                "printflush message1",
+                "set @counter retAddr"
+        );
+        checkResults(expected, SizeOptimizer.outline(code));
+    }
+
+    @Test
+    void size() {
+        assertEquals(2, SizeOptimizer.size(genList("label a", "set a 1", "end")));
+    }
+}
@@ -0,0 +1,53 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingCompilerTest {
+
+    private String compileWhole(String code) {
+        MinAsmLexer lexer = new MinAsmLexer(CharStreams.fromString(code));
+        MinAsmParser parser = new MinAsmParser(new CommonTokenStream(lexer));
+        List<String> instructions = new CompileVisitor().visit(parser.program());
+        instructions = LabelFixer.fixLabels(DrawOptimizer.removeRedundantState(instructions));
+        return String.join("\n", instructions) + "\n";
+    }
+
+    private String compileStreaming(String code) throws IOException {
+        StringWriter out = new StringWriter();
+        new StreamingCompiler(new CompileVisitor()).compile(new StringReader(code), out);
+        return out.toString();
+    }
+
+    @Test
+    void compile() throws IOException {
+        String code = "x = 1;\n"
+                + "label top:\n"
+                + "function step() { x += 1; }\n"
+                + "while (x < 10 && #switch1.enabled) { step(); if (x == 5) goto done; }\n"
+                + "print \"x is \"; print x;\n"
+                + "printflush(message2);\n"
+                + "print \"done\";\n"
+                + "goto top;\n"
+                + "label done:\n";
+        assertEquals(compileWhole(code), compileStreaming(code));
+
+        // a draw state set by one statement makes the same one in a later statement redundant
+        code = "draw(color, 255, 0, 0, 255, 0, 0);\n"
+                + "draw(rect, x, 0, 10, 10, 0, 0);\n"
+                + "draw(color, 255, 0, 0, 255, 0, 0);\n"
+                + "draw(rect, 0, x, 10, 10, 0, 0);\n"
+                + "drawflush();\n";
+        assertEquals(compileWhole(code), compileStreaming(code));
+        assertEquals(1, compileStreaming(code).split("draw color").length - 1);
+
+        // empty program test
+        assertEquals(compileWhole(""), compileStreaming(""));
+    }
+}
@@ -0,0 +1,143 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SuperoptimizerTest {
+
+    private void checkResults(List<String> expected, List<String> actual) {
+        StringBuilder expectedSer = new StringBuilder("\n");
+        StringBuilder actualSer = new StringBuilder("\n");
+
+        for (String s : expected) {
+            expectedSer.append("\t").append(s).append("\n");
+        }
+
+        for (String s : actual) {
+            actualSer.append("\t").append(s).append("\n");
+        }
+
+        assertEquals(expectedSer.toString(), actualSer.toString());
+    }
+
+    private List<String> genList(String... instructions) {
+        return Arrays.asList(instructions.clone());
+    }
+
+    @Test
+    void optimize() throws IOException {
+        List<String> code, actual, expected;
+        Path cache = Files.createTempFile("superopt", ".txt");
+
+        // redundant identity operations inside a loop, keeping one op so a null a still gives 0
+        code = genList(
+                "label loop",
+                "op add eax a 0",
+                "op mul eax eax 1",
+                "set b eax",
+                "op add eax c 1",
+                "jump loop lessThan eax 10",
+                "end"
+        );
+        expected = genList(
+                "label loop",
+                "op add eax c 1",
+                "op add b a 0",
+                "jump loop lessThan eax 10",
+                "end"
+        );
+        actual = new Superoptimizer(cache, 2).optimize(code);
+        checkResults(expected, actual);
+        assertEquals(2, Files.readAllLines(cache).size());
+
+        // a cache from before null and rounding were checked is dropped
+        Path old = Files.createTempFile("superopt", ".txt");
+        String entry = Files.readAllLines(cache).get(1);
+        Files.write(old, Arrays.asList(entry.substring(0, entry.indexOf('\t')) + "\top add v1 v3 1;set v2 v0"));
+        actual = new Superoptimizer(old, 0).optimize(code);
+        checkResults(code, actual);
+
+        // renamed window is served from the cache
+        code = genList(
+                "label loop",
+                "op add eax x 0",
+                "op mul eax eax 1",
+                "set y eax",
+                "op add eax z 1",
+                "jump loop lessThan eax 10",
+                "end"
+        );
+        expected = genList(
+                "label loop",
+                "op add eax z 1",
+                "op add y x 0",
+                "jump loop lessThan eax 10",
+                "end"
+        );
+        actual = new Superoptimizer(cache, 0).optimize(code);
+        checkResults(expected, actual);
+
+        // dead register writes disappear
+        code = genList(
+                "label loop",
+                "op mul eax a 2",
+                "op add x x 1",
+                "op sub eax b 1",
+                "sensor eax s @x",
+                "jump loop lessThan x eax"
+        );
+        expected = genList(
+                "label loop",
+                "op add x x 1",
+                "sensor eax s @x",
+                "jump loop lessThan x eax"
+        );
+        actual = new Superoptimizer(null, 2).optimize(code);
+        checkResults(expected, actual);
+
+        // code outside loops and windows that are already minimal stay as they are
+        code = genList(
+                "op add eax a 0",
+                "op mul eax eax 1",
+                "set b eax",
+                "label loop",
+                "op mul t a b",
+                "op add x t c",
+                "jump loop lessThan x t"
+        );
+        actual = new Superoptimizer(null, 2).optimize(code);
+        checkResults(code, actual);
+
+        // (a + b) - b is only a for exact numbers
+        code = genList(
+                "label loop",
+                "op add t a b",
+                "op sub x t b",
+                "sensor t s @x",
+                "jump loop lessThan x t"
+        );
+        actual = new Superoptimizer(null, 2).optimize(code);
+        checkResults(code, actual);
+
+        // a window with too many candidates to try is left as it is
+        code = genList(
+                "label loop",
+                "op add t a b",
+                "op sub x t b",
+                "op mul u c d",
+                "op add v u e",
+                "op div w v f",
+                "op sub y w g",
+                "jump loop lessThan x y"
+        );
+        List<String> window = code;
+        actual = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> new Superoptimizer(null, 2).optimize(window));
+        checkResults(code, actual);
+    }
+}
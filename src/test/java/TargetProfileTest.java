@@ -0,0 +1,52 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TargetProfileTest {
+
+    @Test
+    void parse() {
+        TargetProfile target = TargetProfile.parse("micro");
+        assertEquals("micro", target.getProcessor());
+        assertEquals(CostAnalyzer.MICRO_RATE, target.getRate());
+        assertEquals(TargetProfile.INSTRUCTION_LIMIT, target.getLimit());
+        assertEquals("bank1", target.getBank());
+        assertEquals("message1", target.getMessage());
+        assertEquals("display1", target.getDisplay());
+
+        target = TargetProfile.parse("hyper,bank=cell2,message=message3,display=display4,limit=600");
+        assertEquals(CostAnalyzer.HYPER_RATE, target.getRate());
+        assertEquals(600, target.getLimit());
+        assertEquals("cell2", target.getBank());
+        assertEquals("message3", target.getMessage());
+        assertEquals("display4", target.getDisplay());
+
+        // without a target the size of a program isn't checked
+        assertNull(TargetProfile.defaults().getLimit());
+        assertEquals(CostAnalyzer.LOGIC_RATE, TargetProfile.defaults().getRate());
+    }
+
+    @Test
+    void errors() {
+        RuntimeException e = assertThrows(RuntimeException.class, () -> TargetProfile.parse("world"));
+        assertEquals("unknown processor: world", e.getMessage());
+
+        e = assertThrows(RuntimeException.class, () -> TargetProfile.parse("logic,speed=2"));
+        assertEquals("unknown target setting: speed", e.getMessage());
+
+        e = assertThrows(RuntimeException.class, () -> TargetProfile.parse("logic,bank"));
+        assertEquals("expected <setting>=<value>: bank", e.getMessage());
+
+        e = assertThrows(RuntimeException.class, () -> TargetProfile.parse("logic,limit=lots"));
+        assertEquals("instruction limit must be a whole number: lots", e.getMessage());
+
+        e = assertThrows(RuntimeException.class, () -> TargetProfile.parse("logic,limit=1001"));
+        assertEquals("instruction limit must be from 1 to 1000: 1001", e.getMessage());
+    }
+
+    @Test
+    void capacity() {
+        assertEquals(512, TargetProfile.capacity("bank2"));
+        assertEquals(64, TargetProfile.capacity("cell1"));
+    }
+}
@@ -0,0 +1,83 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TaskSchedulerTest {
+
+    private void checkResults(List<String> expected, List<String> actual) {
+        StringBuilder expectedSer = new StringBuilder("\n");
+        StringBuilder actualSer = new StringBuilder("\n");
+
+        for (String s : expected) {
+            expectedSer.append("\t").append(s).append("\n");
+        }
+
+        for (String s : actual) {
+            actualSer.append("\t").append(s).append("\n");
+        }
+
+        assertEquals(expectedSer.toString(), actualSer.toString());
+    }
+
+    private List<String> genList(String... instructions) {
+        return Arrays.asList(instructions.clone());
+    }
+
+    @Test
+    void insertYields() {
+        List<String> yield = TaskScheduler.yieldInstructions("pc_t", 1);
+        List<String> code, expected;
+
+        // counts merge at labels, so the longer branch decides
+        code = genList(
+                TaskScheduler.YIELD_POINT,
+                "jump .ifLbl0 equal a 0",
+                TaskScheduler.YIELD_POINT,
+                "set b 1",
+                TaskScheduler.YIELD_POINT,
+                "set c 1",
+                "label .ifLbl0",
+                TaskScheduler.YIELD_POINT,
+                "set d 1",
+                TaskScheduler.YIELD_POINT,
+                "set e 1"
+        );
+        expected = genList(
+                "jump .ifLbl0 equal a 0",
+                "set b 1",
+                "set c 1",
+                "label .ifLbl0",
+                "op add pc_t @counter 1",
+                "jump .taskStub1 always null null",
+                "set d 1",
+                "set e 1"
+        );
+        checkResults(expected, TaskScheduler.insertYields(code, 3, yield));
+
+        // backward jumps yield unless they just did
+        code = genList(
+                "label loop",
+                "set a 1",
+                "jump loop always null null",
+                "label wait",
+                "op add pc_t @counter 1",
+                "jump .taskStub1 always null null",
+                "jump wait always null null"
+        );
+        expected = genList(
+                "label loop",
+                "set a 1",
+                "op add pc_t @counter 1",
+                "jump .taskStub1 always null null",
+                "jump loop always null null",
+                "label wait",
+                "op add pc_t @counter 1",
+                "jump .taskStub1 always null null",
+                "jump wait always null null"
+        );
+        checkResults(expected, TaskScheduler.insertYields(code, 50, yield));
+    }
+}
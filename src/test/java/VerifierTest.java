@@ -0,0 +1,30 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VerifierTest {
+
+    private List<String> genList(String... instructions) {
+        return Arrays.asList(instructions.clone());
+    }
+
+    @Test
+    void verify() {
+        Verifier.verify(genList("label x", "set a 1", "jump x always null null", "end"), "test");
+
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> Verifier.verify(genList("label x", "label x", "end"), "test"));
+        assertEquals("duplicate label 'x' after test", e.getMessage());
+
+        e = assertThrows(RuntimeException.class,
+                () -> Verifier.verify(genList("jump y always null null"), "test"));
+        assertEquals("invalid jump to label 'y' after test", e.getMessage());
+
+        e = assertThrows(RuntimeException.class,
+                () -> Verifier.verify(genList("set a 1", " "), "test"));
+        assertEquals("empty instruction after test", e.getMessage());
+    }
+}